@@ -16,9 +16,16 @@
 
 package com.devspark.appmsg;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -27,8 +34,23 @@ import android.view.ViewGroup.LayoutParams;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.FrameLayout;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
+
 /**
  * In-layout notifications. Based on {@link android.widget.Toast} notifications
  * and article by Cyril Mottier (http://android.cyrilmottier.com/?p=773).
@@ -87,6 +109,26 @@ public class AppMsg {
      */
     public static final int PRIORITY_HIGH = Integer.MAX_VALUE;
 
+    /**
+     * In and out animations run as usual.
+     *
+     * @see #setJankAdaptive(boolean)
+     */
+    public static final int ANIMATIONS_FULL = 0;
+    /**
+     * Frames are being dropped, default animations are shortened and messages are displayed
+     * one at a time.
+     *
+     * @see #setJankAdaptive(boolean)
+     */
+    public static final int ANIMATIONS_SHORT = 1;
+    /**
+     * Frames keep being dropped, messages are displayed one at a time without animations.
+     *
+     * @see #setJankAdaptive(boolean)
+     */
+    public static final int ANIMATIONS_OFF = 2;
+
     /**
      * Show the text notification for a long period of time with a negative style.
      */
@@ -102,14 +144,57 @@ public class AppMsg {
      */
     public static final Style STYLE_INFO = new Style(LENGTH_SHORT, R.color.info);
 
-    private final Activity mActivity;
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    /** Inflaters of Activities, held by the Activities themselves. */
+    private static final Map<Activity, WeakReference<LayoutInflater>> sInflaters =
+            new WeakHashMap<Activity, WeakReference<LayoutInflater>>();
+
+    private Activity mActivity;
+    private WeakReference<Activity> mActivityRef;
     private int mDuration = LENGTH_SHORT;
     private View mView;
-    private ViewGroup mParent;
+    private WeakReference<View> mWeakView;
+    private WeakReference<ViewGroup> mParent;
     private LayoutParams mLayoutParams;
     private boolean mFloating;
     Animation mInAnimation, mOutAnimation;
     int mPriority = PRIORITY_NORMAL;
+    long mQueuedAt;
+    long mAgingKey;
+    /** Order in which it was queued, see {@link MsgOrder#sequence(Object)}. */
+    long mSequence;
+    long mRemoveAt;
+    long mRemaining;
+    boolean mDefaultAnimations;
+    boolean mTraced;
+    /** Whether it was displayed before being handed off, so it doesn't animate in again. */
+    boolean mHandedOff;
+    MsgManager.RemovalListener mRemovalListener;
+    final int mId = sNextId.incrementAndGet();
+    /**
+     * Sent along with pending {@link android.os.Message}s instead of the AppMsg itself,
+     * so that the main Looper doesn't hold on to it.
+     */
+    final Integer mToken = mId;
+    final MsgManager.OutAnimationListener mOutListener = new MsgManager.OutAnimationListener(this);
+
+    // What's needed to inflate the view again after it has been released, see #releaseView()
+    int mLayoutId;
+    private CharSequence mText;
+    private TextSource mTextSource;
+    private int mProgress = -1;
+    private Style mStyle;
+    private float mTextSize;
+    private OnClickListener mClickListener;
+    private boolean mViewExposed;
+    private MsgManager mManager;
+    private Updater mUpdater;
+    private Object mTag;
+    /** Whether the view is being inflated in the background, see {@link MsgInflater}. */
+    private boolean mPreparing;
+    /** The tag this AppMsg is indexed under by its manager. */
+    Object mIndexedTag;
 
     /**
      * Construct an empty AppMsg object. You must call {@link #setView} before
@@ -118,7 +203,8 @@ public class AppMsg {
      * @param activity {@link android.app.Activity} to use.
      */
     public AppMsg(Activity activity) {
-        mActivity =  activity;
+        mActivity = MsgManager.sWeakReferences ? null : activity;
+        mActivityRef = new WeakReference<Activity>(activity);
     }
 
     /**
@@ -130,7 +216,7 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style) {
-        return makeText(context, text, style, R.layout.app_msg);
+        return new Builder(context).setText(text).setStyle(style).build();
     }
     
 
@@ -143,7 +229,8 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style, OnClickListener clickListener) {
-        return makeText(context, text, style, R.layout.app_msg);
+        return new Builder(context).setText(text).setStyle(style)
+                .setOnClickListener(clickListener).build();
     }
     
     /**
@@ -156,7 +243,7 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style, float textSize) {
-        return makeText(context, text, style, R.layout.app_msg, textSize);
+        return new Builder(context).setText(text).setStyle(style).setTextSize(textSize).build();
     }
     
     
@@ -170,7 +257,8 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style, float textSize, OnClickListener clickListener) {
-        return makeText(context, text, style, R.layout.app_msg, textSize, clickListener);
+        return new Builder(context).setText(text).setStyle(style).setTextSize(textSize)
+                .setOnClickListener(clickListener).build();
     }
 
     /**
@@ -182,11 +270,7 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style, int layoutId) {
-        LayoutInflater inflate = (LayoutInflater)
-                context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View v = inflate.inflate(layoutId, null);
-
-        return makeText(context, text, style, v, true);
+        return new Builder(context).setText(text).setStyle(style).setLayout(layoutId).build();
     }
     
     
@@ -199,11 +283,8 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style, int layoutId, OnClickListener clickListener) {
-        LayoutInflater inflate = (LayoutInflater)
-                context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View v = inflate.inflate(layoutId, null);
-
-        return makeText(context, text, style, v, true);
+        return new Builder(context).setText(text).setStyle(style).setLayout(layoutId)
+                .setOnClickListener(clickListener).build();
     }
     
     
@@ -218,11 +299,8 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style, int layoutId, float textSize, OnClickListener clickListener) {
-        LayoutInflater inflate = (LayoutInflater)
-                context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View v = inflate.inflate(layoutId, null);
-
-        return makeText(context, text, style, v, true, textSize, clickListener);
+        return new Builder(context).setText(text).setStyle(style).setLayout(layoutId)
+                .setTextSize(textSize).setOnClickListener(clickListener).build();
     }
     
     /**
@@ -235,150 +313,108 @@ public class AppMsg {
      * @param style   The style with a background and a duration.
      */
     public static AppMsg makeText(Activity context, CharSequence text, Style style, int layoutId, float textSize) {
-        LayoutInflater inflate = (LayoutInflater)
-                context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        View v = inflate.inflate(layoutId, null);
-
-        return makeText(context, text, style, v, true, textSize);
+        return new Builder(context).setText(text).setStyle(style).setLayout(layoutId)
+                .setTextSize(textSize).build();
     }
-    
-    
- 
 
     /**
-     * Make a non-floating {@link AppMsg} with a custom view presented inside the layout.
-     * It can be used to create non-floating notifications if floating is false.
+     * Make a {@link AppMsg} that just contains a text view. Neither the text nor the view
+     * are made before the message gets displayed.
      *
-     * @param context  The context to use. Usually your
-     *                 {@link android.app.Activity} object.
-     * @param customView
-     *                 View to be used.
-     * @param text     The text to show. Can be formatted text.
-     * @param style    The style with a background and a duration.
+     * @param context The context to use. Usually your
+     *                {@link android.app.Activity} object.
+     * @param text    The source of the text to show.
+     * @param style   The style with a background and a duration.
      */
-    public static AppMsg makeText(Activity context, CharSequence text, Style style, View customView) {
-       return makeText(context, text, style, customView, false);
+    public static AppMsg makeText(Activity context, TextSource text, Style style) {
+        return new Builder(context).setText(text).setStyle(style).build();
     }
-    
-    
 
     /**
-     * Make a non-floating {@link AppMsg} with a custom view presented inside the layout.
-     * It can be used to create non-floating notifications if floating is false.
+     * Make a {@link AppMsg} with a custom layout. The layout must have a {@link TextView} com id
+     * {@link android.R.id.message}. Neither the text nor the view are made before the message
+     * gets displayed.
      *
-     * @param context  The context to use. Usually your
-     *                 {@link android.app.Activity} object.
-     * @param customView
-     *                 View to be used.
-     * @param text     The text to show. Can be formatted text.
-     * @param style    The style with a background and a duration.
+     * @param context The context to use. Usually your
+     *                {@link android.app.Activity} object.
+     * @param text    The source of the text to show.
+     * @param style   The style with a background and a duration.
      */
-    public static AppMsg makeText(Activity context, CharSequence text, Style style, View customView, OnClickListener clickListener) {
-       return makeText(context, text, style, customView, false, clickListener);
+    public static AppMsg makeText(Activity context, TextSource text, Style style, int layoutId) {
+        return new Builder(context).setText(text).setStyle(style).setLayout(layoutId).build();
     }
 
-
     /**
-     * Make a {@link AppMsg} with a custom view. It can be used to create non-floating notifications if floating is false.
+     * Inflates a view from given layout, or reuses one left by a dismissed {@link AppMsg}
+     * if <code>reuse</code> is true.
      *
-     * @param context  The context to use. Usually your
-     *                 {@link android.app.Activity} object.
-     * @param view
-     *                 View to be used.
-     * @param text     The text to show. Can be formatted text.
-     * @param style    The style with a background and a duration.
-     * @param floating true if it'll float.
+     * @param reuse Whether the view only gets a background and a text, so that it doesn't
+     *              matter what a previous {@link AppMsg} did with it.
      */
-    private static AppMsg makeText(Activity context, CharSequence text, Style style, View view, boolean floating) {
-        return makeText(context, text, style, view, floating, 0);
+    private static View obtainView(Activity context, int layoutId, boolean reuse) {
+        if (reuse) {
+            final View recycled = MsgManager.obtainRecycledView(context, layoutId);
+            if (recycled != null) {
+                return recycled;
+            }
+        }
+        final boolean traced = MsgTrace.beginSection(MsgTrace.SECTION_INFLATE);
+        try {
+            return getInflater(context).inflate(layoutId, null);
+        } finally {
+            if (traced) {
+                MsgTrace.endSection();
+            }
+        }
     }
-    
-    
-    
+
     /**
-     * Make a {@link AppMsg} with a custom view. It can be used to create non-floating notifications if floating is false.
-     *
-     * @param context  The context to use. Usually your
-     *                 {@link android.app.Activity} object.
-     * @param view
-     *                 View to be used.
-     * @param text     The text to show. Can be formatted text.
-     * @param style    The style with a background and a duration.
-     * @param floating true if it'll float.
+     * Return the inflater of given Activity, looked up once per Activity. The Activity
+     * holds on to its inflater, so it's only referenced weakly here.
      */
-    private static AppMsg makeText(Activity context, CharSequence text, Style style, View view, boolean floating, OnClickListener clickListener) {
-        return makeText(context, text, style, view, floating, 0, clickListener);
+    private static synchronized LayoutInflater getInflater(Activity context) {
+        final WeakReference<LayoutInflater> ref = sInflaters.get(context);
+        LayoutInflater inflater = ref != null ? ref.get() : null;
+        if (inflater == null) {
+            inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            sInflaters.put(context, new WeakReference<LayoutInflater>(inflater));
+        }
+        return inflater;
     }
-    
+
     /**
-     * 
-     * @author mengguoqiang 
-     * Make a {@link AppMsg} with a custom view. It can be used to create non-floating notifications if floating is false.
+     * Make a non-floating {@link AppMsg} with a custom view presented inside the layout.
+     * It can be used to create non-floating notifications if floating is false.
      *
      * @param context  The context to use. Usually your
      *                 {@link android.app.Activity} object.
-     * @param view
+     * @param customView
      *                 View to be used.
      * @param text     The text to show. Can be formatted text.
      * @param style    The style with a background and a duration.
-     * @param floating true if it'll float.
      */
-    private static AppMsg makeText(Activity context, CharSequence text, Style style, View view, boolean floating, float textSize) {
-        AppMsg result = new AppMsg(context);
-
-        view.setBackgroundResource(style.background);
-
-        TextView tv = (TextView) view.findViewById(android.R.id.message);
-        if(textSize > 0) tv.setTextSize(textSize);
-        tv.setText(text);
-
-        result.mView = view;
-        result.mDuration = style.duration;
-        result.mFloating = floating;
-
-        return result;
+    public static AppMsg makeText(Activity context, CharSequence text, Style style, View customView) {
+        return new Builder(context).setText(text).setStyle(style).setView(customView)
+                .setFloating(false).build();
     }
     
     
-    
+
     /**
-     * 
-     
-     * Make a {@link AppMsg} with a custom view. It can be used to create non-floating notifications if floating is false.
+     * Make a non-floating {@link AppMsg} with a custom view presented inside the layout.
+     * It can be used to create non-floating notifications if floating is false.
      *
      * @param context  The context to use. Usually your
      *                 {@link android.app.Activity} object.
-     * @param view
+     * @param customView
      *                 View to be used.
      * @param text     The text to show. Can be formatted text.
      * @param style    The style with a background and a duration.
-     * @param floating true if it'll float.
-     * @param clickListener Clicklistener
      */
-    private static AppMsg makeText(Activity context, CharSequence text, Style style, View view, boolean floating, 
-    		float textSize, OnClickListener clickListener) {
-        AppMsg result = new AppMsg(context);
-
-        view.setBackgroundResource(style.background);
-        view.setClickable(true);
-
-        TextView tv = (TextView) view.findViewById(android.R.id.message);
-        if(textSize > 0) tv.setTextSize(textSize);
-        tv.setText(text);
-
-        result.mView = view;
-        result.mDuration = style.duration;
-        result.mFloating = floating;
-        
-        view.setOnClickListener(clickListener);
-
-        return result;
+    public static AppMsg makeText(Activity context, CharSequence text, Style style, View customView, OnClickListener clickListener) {
+        return new Builder(context).setText(text).setStyle(style).setView(customView)
+                .setFloating(false).setOnClickListener(clickListener).build();
     }
-    
-    
-    
-    
-    
 
     /**
      * Make a {@link AppMsg} with a custom view. It can be used to create non-floating notifications if floating is false.
@@ -391,7 +427,8 @@ public class AppMsg {
      * @param floating true if it'll float.
      */
     public static AppMsg makeText(Activity context, int resId, Style style, View customView, boolean floating) {
-        return makeText(context, context.getResources().getText(resId), style, customView, floating);
+        return new Builder(context).setText(resId).setStyle(style).setView(customView)
+                .setFloating(floating).build();
     }
 
     /**
@@ -403,11 +440,12 @@ public class AppMsg {
      * @param resId   The resource id of the string resource to use. Can be
      *                formatted text.
      * @param style   The style with a background and a duration.
-     * @throws Resources.NotFoundException if the resource can't be found.
+     * @throws Resources.NotFoundException if the resource can't be found, once the
+     *                                     message gets displayed.
      */
     public static AppMsg makeText(Activity context, int resId, Style style)
             throws Resources.NotFoundException {
-        return makeText(context, context.getResources().getText(resId), style);
+        return new Builder(context).setText(resId).setStyle(style).build();
     }
 
     /**
@@ -419,29 +457,75 @@ public class AppMsg {
      * @param resId   The resource id of the string resource to use. Can be
      *                formatted text.
      * @param style   The style with a background and a duration.
-     * @throws Resources.NotFoundException if the resource can't be found.
+     * @throws Resources.NotFoundException if the resource can't be found, once the
+     *                                     message gets displayed.
      */
     public static AppMsg makeText(Activity context, int resId, Style style, int layoutId)
             throws Resources.NotFoundException {
-        return makeText(context, context.getResources().getText(resId), style, layoutId);
+        return new Builder(context).setText(resId).setStyle(style).setLayout(layoutId).build();
     }
 
     /**
      * Show the view for the specified duration.
      */
     public void show() {
-        MsgManager manager = MsgManager.obtain(mActivity);
-        manager.add(this);
+        if (mPreparing) {
+            return; // Already on its way
+        }
+        final Activity activity = getActivity();
+        if (activity == null) {
+            onDropped(); // Nowhere to show it any more
+            return;
+        }
+        if (MsgInflater.sEnabled && peekView() == null && mLayoutId != 0) {
+            final View recycled = isRecyclable()
+                    ? MsgManager.obtainRecycledView(activity, mLayoutId) : null;
+            if (recycled == null) {
+                mPreparing = true;
+                MsgInflater.inflateAndShow(this, activity);
+                return;
+            }
+            mView = bindView(recycled);
+        }
+        enqueue(activity);
+    }
+
+    private void enqueue(Activity activity) {
+        mManager = MsgManager.obtain(activity, getParent());
+        mManager.add(this);
+    }
+
+    /**
+     * Called on the main thread once the view has been inflated in the background.
+     *
+     * @param view The inflated view, or <code>null</code> if it has to be inflated when
+     *             displayed.
+     */
+    void onPrepared(View view) {
+        if (!mPreparing) {
+            return; // Cancelled meanwhile
+        }
+        mPreparing = false;
+        final Activity activity = getActivity();
+        if (activity == null) {
+            onDropped();
+            return;
+        }
+        if (view != null && peekView() == null) {
+            mView = bindView(view);
+        }
+        enqueue(activity);
     }
 
     /**
      * @return <code>true</code> if the {@link AppMsg} is being displayed, else <code>false</code>.
      */
     public boolean isShowing() {
+        final View view = peekView();
         if (mFloating) {
-            return mView != null && mView.getParent() != null;
+            return view != null && view.getParent() != null;
         } else {
-            return mView.getVisibility() == View.VISIBLE;
+            return view != null && view.getVisibility() == View.VISIBLE;
         }
     }
 
@@ -451,8 +535,22 @@ public class AppMsg {
      * after the appropriate duration.
      */
     public void cancel() {
-        MsgManager.obtain(mActivity).clearMsg(this);
+        final boolean preparing = mPreparing;
+        mPreparing = false;
+        final boolean queued = mManager != null && mManager.clearMsg(this);
+        if (preparing && !queued) {
+            onDropped(); // Cancelled while inflating, before reaching its manager
+        }
+    }
 
+    /**
+     * Notifies the removal listener of a message that won't reach its {@link MsgManager},
+     * which would otherwise do it.
+     */
+    private void onDropped() {
+        if (mRemovalListener != null) {
+            mRemovalListener.onRemoved(this);
+        }
     }
 
     /**
@@ -473,223 +571,1289 @@ public class AppMsg {
     }
 
     /**
-     * Return the activity.
+     * Cancels all queued {@link AppMsg}s, in given {@link android.app.Activity}, optionally
+     * without out animations. When not animated, displayed views are all removed in
+     * a single layout pass and kept to be reused by the next {@link AppMsg}s made from
+     * the same layout.
+     *
+     * @param activity The Activity.
+     * @param animate  <code>false</code> to remove displayed views at once.
      */
-    public Activity getActivity() {
-        return mActivity;
+    public static void cancelAll(Activity activity, boolean animate) {
+        MsgManager.release(activity, animate);
     }
 
     /**
-     * Set the view to show.
+     * Cancels all {@link AppMsg}s queued for given parent, when parents have their own queue.
+     * Call it when the owner of the parent goes away, e.g. in
+     * {@link android.app.Fragment#onDestroyView()}. On API 12+ this is done automatically
+     * once the parent is detached from its window.
      *
-     * @see #getView
+     * @param activity The Activity of the parent.
+     * @param parent   The parent provided with {@link #setParent(android.view.ViewGroup)}.
+     * @see #setQueuePerParent(boolean)
      */
-    public void setView(View view) {
-        mView = view;
+    public static void cancelAll(Activity activity, ViewGroup parent) {
+        MsgManager.release(activity, parent);
     }
 
     /**
-     * Return the view.
+     * Cancels all {@link AppMsg}s with given tag, in given {@link android.app.Activity}.
      *
-     * @see #setView
+     * @param activity The Activity.
+     * @param tag      The tag provided with {@link #setTag(Object)}.
      */
-    public View getView() {
-        return mView;
+    public static void cancelByTag(Activity activity, Object tag) {
+        MsgManager.clearTag(activity, tag);
     }
 
     /**
-     * Set how long to show the view for.
+     * Cancels all {@link AppMsg}s with given tag, in all Activities.
      *
-     * @see #LENGTH_SHORT
-     * @see #LENGTH_LONG
+     * @param tag The tag provided with {@link #setTag(Object)}.
      */
-    public void setDuration(int duration) {
-        mDuration = duration;
+    public static void cancelByTag(Object tag) {
+        MsgManager.clearTagAll(tag);
     }
 
     /**
-     * Return the duration.
+     * <p>Give each parent provided with {@link #setParent(android.view.ViewGroup)} its own
+     * queue, so that {@link AppMsg}s shown in different parts of the screen don't wait for
+     * each other. {@link AppMsg}s without a custom parent share the queue of their
+     * Activity.</p>
      *
-     * @see #setDuration
+     * <p>The queue of a parent is released along with the Activity, with
+     * {@link #cancelAll(android.app.Activity, android.view.ViewGroup)} or, on API 12+,
+     * once the parent is detached from its window.</p>
+     *
+     * @param perParent <code>true</code> to queue per parent, <code>false</code> by default.
      */
-    public int getDuration() {
-        return mDuration;
+    public static void setQueuePerParent(boolean perParent) {
+        MsgManager.sQueuePerParent = perParent;
     }
 
     /**
-     * Update the text in a AppMsg that was previously created using one of the makeText() methods.
+     * Limit the number of {@link #LENGTH_STICKY} messages displayed at once. Once the limit
+     * is reached, displaying another sticky message dismisses the one displayed the longest.
      *
-     * @param resId The new text for the AppMsg.
+     * @param maxCount The maximum number of sticky messages per queue, or <code>0</code>
+     *                 for no limit (the default).
      */
-    public void setText(int resId) {
-        setText(mActivity.getText(resId));
+    public static void setMaxStickyCount(int maxCount) {
+        if (maxCount < 0) {
+            throw new IllegalArgumentException("maxCount < 0");
+        }
+        MsgManager.sMaxStickyCount = maxCount;
     }
 
     /**
-     * Update the text in a AppMsg that was previously created using one of the makeText() methods.
+     * <p>Queue {@link AppMsg}s in three FIFO lanes (low, normal and high priority) instead of
+     * sorting them by their exact priority. Adding and picking the next message then take
+     * constant time, and messages with the same priority level are shown in the order they
+     * were queued. Any negative priority goes to the low lane, any positive one to the
+     * high lane.</p>
      *
-     * @param s The new text for the AppMsg.
+     * <p>Applies to Activities, or parents, that haven't shown any {@link AppMsg} yet.</p>
+     *
+     * @param lanes <code>true</code> to use priority lanes, <code>false</code> by default.
+     * @see #setPriority(int)
      */
-    public void setText(CharSequence s) {
-        if (mView == null) {
-            throw new RuntimeException("This AppMsg was not created with AppMsg.makeText()");
-        }
-        TextView tv = (TextView) mView.findViewById(android.R.id.message);
-        if (tv == null) {
-            throw new RuntimeException("This AppMsg was not created with AppMsg.makeText()");
-        }
-        tv.setText(s);
+    public static void setPriorityLanes(boolean lanes) {
+        MsgManager.sPriorityLanes = lanes;
     }
 
     /**
-     * Gets the crouton's layout parameters, constructing a default if necessary.
+     * <p>Enable priority aging, so that a steady stream of {@link #PRIORITY_HIGH} messages
+     * can't keep {@link #PRIORITY_LOW} ones waiting in the queue forever.</p>
      *
-     * @return the layout parameters
+     * <p>While a message waits its effective priority rises by one level
+     * (low, normal, high) every <code>interval</code> milliseconds. A queued message
+     * can therefore be overtaken by newly shown ones for at most two intervals.
+     * Messages with the same level are shown in the order they were queued, so priorities
+     * other than the predefined ones lose their meaning within a level.</p>
+     *
+     * <p>Messages already queued are reordered with the new interval.</p>
+     *
+     * @param interval Time in milliseconds for a queued message to gain one priority level,
+     *                 or <code>0</code> to disable aging (the default).
+     * @see #setPriority(int)
      */
-    public LayoutParams getLayoutParams() {
-        if (mLayoutParams == null) {
-            mLayoutParams = new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+    public static void setPriorityAging(long interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
         }
-        return mLayoutParams;
+        MsgManager.setAgingInterval(interval);
     }
 
     /**
-     * Sets the layout parameters which will be used to display the crouton.
+     * <p>Let urgent {@link AppMsg}s interrupt the ones being displayed instead of waiting
+     * for them to go away. When a message with a priority above <code>threshold</code> is
+     * shown, displayed messages with a priority up to <code>threshold</code> are dismissed
+     * with their out animation while the urgent one animates in. Sticky messages are left
+     * as they are.</p>
      *
-     * @param layoutParams The layout parameters to use.
-     * @return <code>this</code>, for chaining.
+     * @param threshold The priority urgent messages are above, {@link #PRIORITY_HIGH} to
+     *                  disable preemption (the default).
+     * @param requeue   <code>true</code> to queue interrupted messages again, to be displayed
+     *                  for the time they had left, <code>false</code> to cancel them.
+     * @see #setPriority(int)
      */
-    public AppMsg setLayoutParams(LayoutParams layoutParams) {
-        mLayoutParams = layoutParams;
-        return this;
+    public static void setPreemption(int threshold, boolean requeue) {
+        MsgManager.sPreemptionThreshold = threshold;
+        MsgManager.sRequeuePreempted = requeue;
     }
 
     /**
-     * Constructs and sets the layout parameters to have some gravity.
+     * <p>Release memory held by queued {@link AppMsg}s, in all Activities. Views kept for
+     * reuse are dropped. Views of messages that are not showing yet are dropped too and
+     * inflated again right before they get displayed, default animations are loaded again
+     * as well.</p>
      *
-     * @param gravity the gravity of the Crouton
-     * @return <code>this</code>, for chaining.
-     * @see android.view.Gravity
+     * <p>This is done automatically on API 14+ when the system asks the application to trim
+     * memory. On older versions you may call it from
+     * {@link android.app.Activity#onLowMemory()}.</p>
+     *
+     * @param level The trim level, one of the <code>TRIM_MEMORY_*</code> constants of
+     *              {@link android.content.ComponentCallbacks2}.
+     * @return A weighted count of the released views and animations, in nominal bytes.
+     *         It isn't a measure of reclaimed memory.
+     * @see #setOnTrimMemoryListener(OnTrimMemoryListener)
      */
-    public AppMsg setLayoutGravity(int gravity) {
-        mLayoutParams = new FrameLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, gravity);
-        return this;
+    public static long trimMemory(int level) {
+        return MsgManager.trimAll(level);
     }
 
     /**
-     * Return the value of floating.
+     * Set a listener to be notified each time queued {@link AppMsg}s release memory.
      *
-     * @see #setFloating(boolean)
+     * @param listener The listener, or <code>null</code> to remove it.
      */
-    public boolean isFloating() {
-        return mFloating;
+    public static void setOnTrimMemoryListener(OnTrimMemoryListener listener) {
+        MsgManager.sTrimListener = listener;
     }
 
     /**
-     * Sets the value of floating.
+     * <p>Make {@link AppMsg}s created from now on reference their {@link android.app.Activity}
+     * weakly, so that messages waiting in the queue don't keep a destroyed Activity in memory.</p>
      *
-     * @param mFloating
+     * <p>Views of waiting messages made from a layout are released and inflated again right
+     * before they get displayed, and views being displayed are only referenced by the view
+     * hierarchy they were added to. Views provided with {@link #setView(android.view.View)}
+     * or obtained with {@link #getView()}, as well as click listeners, are still held strongly,
+     * so they must not reference the Activity themselves.</p>
+     *
+     * @param weak <code>true</code> to reference Activities weakly, <code>false</code> by default.
      */
-    public void setFloating(boolean mFloating) {
-        this.mFloating = mFloating;
+    public static void setWeakReferences(boolean weak) {
+        MsgManager.sWeakReferences = weak;
     }
 
     /**
-     * Sets the Animations to be used when displaying/removing the Crouton.
-     * @param inAnimation the Animation resource ID to be used when displaying.
-     * @param outAnimation the Animation resource ID to be used when removing.
+     * <p>Moves the {@link AppMsg}s of an Activity, queued or displayed, to another one,
+     * e.g. when navigating from the first to the second, instead of cancelling and making
+     * them again.</p>
+     *
+     * <p>Displayed messages keep their remaining duration and show up in the new Activity
+     * without in animation, queued ones keep their order. Views are moved along, except
+     * views inflated from a layout for the previous Activity, which are inflated again for
+     * the new one. Custom parents are looked up by id in the new Activity, and messages
+     * fall back to its content view if not found. With
+     * {@link #setQueuePerParent(boolean) a queue per parent}, messages go to the queue of
+     * their parent in the new Activity. Non-floating messages are part of the
+     * previous Activity's layout, so they are cancelled.</p>
+     *
+     * @param from The Activity the messages are taken from.
+     * @param to   The Activity the messages are moved to.
      */
-    public AppMsg setAnimation(int inAnimation, int outAnimation) {
-        return setAnimation(AnimationUtils.loadAnimation(mActivity, inAnimation),
-                AnimationUtils.loadAnimation(mActivity, outAnimation));
+    public static void handOff(Activity from, Activity to) {
+        MsgManager.handOff(from, to);
     }
 
     /**
-     * Sets the Animations to be used when displaying/removing the Crouton.
-     * @param inAnimation the Animation to be used when displaying.
-     * @param outAnimation the Animation to be used when removing.
+     * <p>Hold {@link AppMsg}s with a priority below <code>threshold</code> until the main
+     * thread is idle, so that attaching and animating them doesn't cause jank while the UI
+     * is busy. Messages with a higher priority are displayed as soon as usual.</p>
+     *
+     * <p>The main thread counts as idle when its message queue is empty. It may be so
+     * between the frames of a fling or of an animation, so pass a {@link BusySignal}, e.g.
+     * based on the scroll state of a list, to hold messages for as long as the UI says so.</p>
+     *
+     * @param threshold The priority held messages are below, {@link #PRIORITY_LOW} to
+     *                  disable it (the default).
+     * @param signal    Tells whether the UI is busy, or <code>null</code>.
      */
-    public AppMsg setAnimation(Animation inAnimation, Animation outAnimation) {
-        mInAnimation = inAnimation;
-        mOutAnimation = outAnimation;
-        return this;
+    public static void setIdleDispatch(int threshold, BusySignal signal) {
+        MsgManager.sIdleThreshold = threshold;
+        MsgManager.sBusySignal = signal;
     }
 
     /**
-     * @return
-     * Current priority
+     * Return snapshots of the {@link AppMsg}s of an Activity, in the order they get
+     * displayed: displayed sticky messages first, then the queue, starting with the
+     * displayed message. Messages queued per parent follow, parent by parent.
      *
-     * @see #PRIORITY_HIGH
-     * @see #PRIORITY_NORMAL
-     * @see #PRIORITY_LOW
+     * @param activity The Activity.
+     * @return An unmodifiable list, empty if the Activity has no messages.
+     * @see #setQueuePerParent(boolean)
      */
-    public int getPriority() {
-        return mPriority;
+    public static List<MsgSnapshot> getQueueSnapshot(Activity activity) {
+        return MsgManager.snapshot(activity);
     }
 
     /**
-     * <p>Set priority for this message</p>
-     * <p><b>Note</b>: This only affects the order in which the messages get shown,
-     * not the stacking order of the views.</p>
+     * Write the state of the {@link AppMsg}s of an Activity, e.g. from
+     * {@link android.app.Activity#dump} so that it shows up in
+     * <code>adb shell dumpsys activity</code>.
      *
-     * <p>Example: In the queue there are 3 messages [A, B, C],
-     * all of them with priority {@link #PRIORITY_NORMAL}, currently message A is being shown
-     * so we add a new message D with priority {@link #PRIORITY_HIGH}, after A goes away, given that
-     * D has a higher priority than B an the reset, D will be shown, then once that D is gone,
-     * B will be shown, and then finally C.</p>
+     * @param activity The Activity.
+     * @param prefix   Text to print at the beginning of each line.
+     * @param writer   Where to write the state.
+     * @see #getQueueSnapshot(android.app.Activity)
+     * @see #dumpFlightRecorder(java.io.PrintWriter)
+     */
+    public static void dump(Activity activity, String prefix, PrintWriter writer) {
+        MsgManager.dump(activity, prefix, writer);
+    }
+
+    /**
+     * <p>Write the last lifecycle events of {@link AppMsg}s, oldest first: queued, displayed,
+     * dropped, hidden and cleared messages with their id, as well as released, paused and
+     * resumed Activities with their identity hash code. Events are always recorded, each
+     * costing a read of the monotonic clock, around 45 nanoseconds on current devices,
+     * and a few array stores, nothing next to displaying a message.</p>
      *
-     * @param priority
-     * A value indicating priority, although you can use any integer value, usage of already
-     * defined is highly encouraged.
+     * <p>Use it from {@link android.app.Activity#dump} or attach it to crash reports with a
+     * {@link java.io.StringWriter}.</p>
      *
-     * @see #PRIORITY_HIGH
-     * @see #PRIORITY_NORMAL
-     * @see #PRIORITY_LOW
+     * @param writer Where to write the events.
+     * @see #getId()
      */
-    public void setPriority(int priority) {
-        mPriority = priority;
+    public static void dumpFlightRecorder(PrintWriter writer) {
+        FlightRecorder.dump(writer);
     }
 
     /**
-     * @return
-     * Provided parent to add {@link #getView()} to using {@link #getLayoutParams()}.
+     * <p>Watch frame timing while {@link AppMsg}s come and go (API 16+), and degrade their
+     * transitions under sustained jank: first {@link #ANIMATIONS_SHORT}, then
+     * {@link #ANIMATIONS_OFF}. Once frames recover, transitions are restored step by
+     * step.</p>
+     *
+     * @param adaptive <code>true</code> to adapt animations, <code>false</code> by default.
+     * @see #setOnAnimationModeListener(OnAnimationModeListener)
      */
-    public ViewGroup getParent() {
-        return mParent;
+    public static void setJankAdaptive(boolean adaptive) {
+        JankMonitor.setEnabled(adaptive);
     }
 
     /**
-     * Provide a different parent than Activity decor view
-     * @param parent
-     * Provided parent to add {@link #getView()} to using {@link #getLayoutParams()}.
+     * @return The current animation mode, {@link #ANIMATIONS_FULL} unless
+     * {@link #setJankAdaptive(boolean)} is enabled.
+     */
+    public static int getAnimationMode() {
+        return JankMonitor.sMode;
+    }
+
+    /**
+     * Set a listener to be notified of each change of the animation mode.
      *
+     * @param listener The listener, or <code>null</code> to remove it.
+     * @see #setJankAdaptive(boolean)
      */
-    public void setParent(ViewGroup parent) {
-        mParent = parent;
+    public static void setOnAnimationModeListener(OnAnimationModeListener listener) {
+        JankMonitor.sListener = listener;
     }
 
     /**
-     * Provide a different parent than Activity decor view
+     * <p>Inflate the views of {@link AppMsg}s made from a layout on a background thread.
+     * The makeText() methods taking a layout then don't inflate anything, and
+     * {@link #show()} returns at once, the message being queued on the main thread once
+     * its view is ready. Layouts that can't be inflated off the main thread are inflated
+     * when displayed.</p>
      *
-     * @param parentId
-     * Provided parent id to add {@link #getView()} to using {@link #getLayoutParams()}.
+     * <p>Background inflation ignores the Activity's inflater factories, as
+     * <code>AsyncLayoutInflater</code> does, so custom layouts relying on them, e.g. for
+     * AppCompat widgets, should be inflated on the main thread.</p>
+     *
+     * <p>Views are reused on the main thread when possible. Views obtained with
+     * {@link #getView()} before {@link #show()} are inflated synchronously.</p>
      *
+     * @param async <code>true</code> to inflate in the background, <code>false</code> by
+     *              default.
      */
-    public void setParent(int parentId) {
-        setParent((ViewGroup) mActivity.findViewById(parentId));
+    public static void setAsyncInflation(boolean async) {
+        MsgInflater.sEnabled = async;
     }
 
     /**
-     * The style for a {@link AppMsg}.
+     * <p>Emit <code>android.os.Trace</code> sections around inflation, display and removal of
+     * {@link AppMsg}s, so that their cost shows up in systrace and Perfetto (API 18+).</p>
      *
-     * @author e.shishkin
+     * <p>On API 29+, each message also gets an async slice "AppMsg" from {@link #show()} to
+     * its removal, and the depths of the queue and of displayed sticky messages are traced
+     * as the counters "AppMsg queue" and "AppMsg sticky".</p>
+     *
+     * @param enabled <code>false</code> by default.
      */
-    public static class Style {
-
-        private final int duration;
-        private final int background;
+    public static void setTracingEnabled(boolean enabled) {
+        MsgTrace.sEnabled = enabled;
+    }
 
-        /**
+    /**
+     * Return the activity, or <code>null</code> if it's been garbage collected
+     * while referenced weakly.
+     *
+     * @see #setWeakReferences(boolean)
+     */
+    public Activity getActivity() {
+        return mActivity != null ? mActivity : mActivityRef.get();
+    }
+
+    /**
+     * Set the view to show.
+     *
+     * @see #getView
+     */
+    public void setView(View view) {
+        mView = view;
+        mWeakView = null;
+        mLayoutId = 0;
+    }
+
+    /**
+     * Return the view.
+     *
+     * @see #setView
+     */
+    public View getView() {
+        // The caller may customize the view, so it can't be inflated again any more.
+        mViewExposed = true;
+        final View view = ensureView();
+        resolveText();
+        return view;
+    }
+
+    /**
+     * Return the view, inflating it again if it has been released by {@link #releaseView()}.
+     */
+    View ensureView() {
+        final Activity activity = getActivity();
+        if (peekView() == null && mLayoutId != 0 && activity != null) {
+            mView = bindView(obtainView(activity, mLayoutId, isRecyclable()));
+        }
+        return peekView();
+    }
+
+    /**
+     * Applies the click listener, style, text and progress of this AppMsg to a view
+     * inflated from its layout, on the main thread.
+     */
+    View bindView(View view) {
+        if (mClickListener != null) {
+            view.setClickable(true);
+            view.setOnClickListener(mClickListener);
+        }
+
+        final ViewHolder holder = ViewHolder.of(view);
+        mStyle.apply(view, holder.message, mTextSize);
+        holder.message.setText(mText);
+
+        if (mProgress >= 0 && holder.progress != null) {
+            holder.progress.setProgress(mProgress);
+        }
+        return view;
+    }
+
+    /**
+     * Resolves the {@link TextSource} given to makeText(), if it hasn't been yet, and applies
+     * the text to the view.
+     */
+    void resolveText() {
+        final Activity activity = getActivity();
+        if (mTextSource == null || activity == null) {
+            return;
+        }
+        mText = mTextSource.getText(activity);
+        mTextSource = null;
+        final View view = peekView();
+        if (view != null) {
+            final TextView tv = ViewHolder.of(view).message;
+            if (tv != null) {
+                tv.setText(mText);
+            }
+        }
+    }
+
+    /**
+     * Moves this message to another Activity, see {@link #handOff}.
+     *
+     * @return The manager of its parent in the new Activity.
+     */
+    MsgManager moveTo(Activity activity) {
+        final Activity previous = getActivity();
+        final View view = peekView();
+        if (view != null) {
+            view.clearAnimation();
+            final ViewGroup parent = (ViewGroup) view.getParent();
+            if (parent != null) {
+                parent.removeView(view);
+            }
+            // Inflated for the previous Activity, don't let it leak into the new one
+            final boolean inflated = mLayoutId != 0 && !mViewExposed
+                    && view.getContext() == previous;
+            mView = inflated ? null : view;
+            mWeakView = null;
+        }
+        final ViewGroup parent = getParent();
+        if (parent != null) {
+            final int id = parent.getId();
+            final View target = id != View.NO_ID ? activity.findViewById(id) : null;
+            setParent(target instanceof ViewGroup ? (ViewGroup) target : null);
+        }
+        if (mActivity != null) {
+            mActivity = activity;
+        }
+        mActivityRef = new WeakReference<Activity>(activity);
+        mManager = MsgManager.obtain(activity, getParent());
+        return mManager;
+    }
+
+    /**
+     * Return the view without inflating it, or <code>null</code> if it has been released.
+     */
+    View peekView() {
+        if (mView == null && mWeakView != null) {
+            return mWeakView.get();
+        }
+        return mView;
+    }
+
+    /**
+     * Only keep a weak reference to the view, once the view hierarchy it's been added to
+     * holds it. Views given with {@link #setView} or obtained with {@link #getView()} stay
+     * held strongly, they couldn't be inflated again if collected.
+     */
+    void holdViewWeakly() {
+        if (mView != null && mLayoutId != 0 && !mViewExposed) {
+            if (mWeakView == null || mWeakView.get() != mView) { // Else shown again
+                mWeakView = new WeakReference<View>(mView);
+            }
+            mView = null;
+        }
+    }
+
+    /**
+     * @return Whether the view only got a background and a text, so that it can be
+     * reused by another {@link AppMsg} made from the same layout.
+     */
+    boolean isRecyclable() {
+        return mLayoutId != 0 && mFloating && !mViewExposed && mTextSize <= 0
+                && mClickListener == null && !mStyle.stylesText() && mProgress < 0;
+    }
+
+    /**
+     * Drops the view of a message that isn't showing, if it can be inflated again later
+     * from its layout.
+     *
+     * @return The released view, or <code>null</code> if it has been kept.
+     */
+    View releaseView() {
+        if (mView == null || mLayoutId == 0 || mViewExposed || isShowing()) {
+            return null;
+        }
+        final View view = mView;
+        mView = null;
+        return view;
+    }
+
+    /**
+     * Set how long to show the view for.
+     *
+     * @see #LENGTH_SHORT
+     * @see #LENGTH_LONG
+     */
+    public void setDuration(int duration) {
+        mDuration = duration;
+    }
+
+    /**
+     * Return the duration.
+     *
+     * @see #setDuration
+     */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Update the text in a AppMsg that was previously created using one of the makeText() methods.
+     *
+     * @param resId The new text for the AppMsg.
+     */
+    public void setText(int resId) {
+        final Activity activity = getActivity();
+        if (activity != null) {
+            setText(activity.getText(resId));
+        }
+    }
+
+    /**
+     * Update the text in a AppMsg that was previously created using one of the makeText() methods.
+     *
+     * @param s The new text for the AppMsg.
+     */
+    public void setText(CharSequence s) {
+        final View view = peekView();
+        if (view == null) {
+            if (mLayoutId != 0) { // Released, the text is applied once inflated again
+                mText = s;
+                mTextSource = null;
+                return;
+            }
+            throw new RuntimeException("This AppMsg was not created with AppMsg.makeText()");
+        }
+        final TextView tv = ViewHolder.of(view).message;
+        if (tv == null) {
+            throw new RuntimeException("This AppMsg was not created with AppMsg.makeText()");
+        }
+        mText = s;
+        mTextSource = null;
+        tv.setText(s);
+    }
+
+    /**
+     * Update the text in a AppMsg that was previously created using one of the makeText()
+     * methods. The text is resolved once the AppMsg gets displayed, or at once if it
+     * already is.
+     *
+     * @param text The source of the new text for the AppMsg.
+     */
+    public void setText(TextSource text) {
+        if (isShowing()) {
+            final Activity activity = getActivity();
+            if (activity != null) {
+                setText(text.getText(activity));
+            }
+        } else {
+            mTextSource = text;
+        }
+    }
+
+    /**
+     * Return a handle to update this AppMsg in place, while it's queued or displayed.
+     *
+     * @see Updater
+     */
+    public Updater getUpdater() {
+        if (mUpdater == null) {
+            mUpdater = new Updater();
+        }
+        return mUpdater;
+    }
+
+    /**
+     * Return the text without resolving it, <code>null</code> if it's from a
+     * {@link TextSource} that hasn't been resolved yet.
+     */
+    CharSequence peekText() {
+        return mText;
+    }
+
+    private void applyText(CharSequence text) {
+        mText = text;
+        mTextSource = null;
+        final View view = peekView();
+        if (view != null) {
+            final TextView tv = ViewHolder.of(view).message;
+            if (tv != null) {
+                tv.setText(text);
+            }
+        }
+    }
+
+    private void applyProgress(int progress) {
+        mProgress = progress;
+        final View view = peekView();
+        if (view != null) {
+            setProgress(view, progress);
+        }
+    }
+
+    private static void setProgress(View view, int progress) {
+        final ProgressBar bar = ViewHolder.of(view).progress;
+        if (bar != null) {
+            bar.setProgress(progress);
+        }
+    }
+
+    /**
+     * Gets the crouton's layout parameters, constructing a default if necessary.
+     *
+     * @return the layout parameters
+     */
+    public LayoutParams getLayoutParams() {
+        if (mLayoutParams == null) {
+            mLayoutParams = new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT);
+        }
+        return mLayoutParams;
+    }
+
+    /**
+     * Sets the layout parameters which will be used to display the crouton.
+     *
+     * @param layoutParams The layout parameters to use.
+     * @return <code>this</code>, for chaining.
+     */
+    public AppMsg setLayoutParams(LayoutParams layoutParams) {
+        mLayoutParams = layoutParams;
+        return this;
+    }
+
+    /**
+     * Constructs and sets the layout parameters to have some gravity.
+     *
+     * @param gravity the gravity of the Crouton
+     * @return <code>this</code>, for chaining.
+     * @see android.view.Gravity
+     */
+    public AppMsg setLayoutGravity(int gravity) {
+        mLayoutParams = new FrameLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT, gravity);
+        return this;
+    }
+
+    /**
+     * Return the value of floating.
+     *
+     * @see #setFloating(boolean)
+     */
+    public boolean isFloating() {
+        return mFloating;
+    }
+
+    /**
+     * Sets the value of floating.
+     *
+     * @param mFloating
+     */
+    public void setFloating(boolean mFloating) {
+        this.mFloating = mFloating;
+    }
+
+    /**
+     * Sets the Animations to be used when displaying/removing the Crouton.
+     * @param inAnimation the Animation resource ID to be used when displaying.
+     * @param outAnimation the Animation resource ID to be used when removing.
+     */
+    public AppMsg setAnimation(int inAnimation, int outAnimation) {
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return this;
+        }
+        return setAnimation(AnimationUtils.loadAnimation(activity, inAnimation),
+                AnimationUtils.loadAnimation(activity, outAnimation));
+    }
+
+    /**
+     * Sets the Animations to be used when displaying/removing the Crouton.
+     * @param inAnimation the Animation to be used when displaying.
+     * @param outAnimation the Animation to be used when removing.
+     */
+    public AppMsg setAnimation(Animation inAnimation, Animation outAnimation) {
+        mInAnimation = inAnimation;
+        mOutAnimation = outAnimation;
+        mDefaultAnimations = false;
+        return this;
+    }
+
+    /**
+     * @return
+     * Current priority
+     *
+     * @see #PRIORITY_HIGH
+     * @see #PRIORITY_NORMAL
+     * @see #PRIORITY_LOW
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * <p>Set priority for this message</p>
+     * <p><b>Note</b>: This only affects the order in which the messages get shown,
+     * not the stacking order of the views.</p>
+     *
+     * <p>Example: In the queue there are 3 messages [A, B, C],
+     * all of them with priority {@link #PRIORITY_NORMAL}, currently message A is being shown
+     * so we add a new message D with priority {@link #PRIORITY_HIGH}, after A goes away, given that
+     * D has a higher priority than B an the reset, D will be shown, then once that D is gone,
+     * B will be shown, and then finally C.</p>
+     *
+     * @param priority
+     * A value indicating priority, although you can use any integer value, usage of already
+     * defined is highly encouraged. With {@link #setPriorityAging(long) priority aging} or
+     * {@link #setPriorityLanes(boolean) priority lanes} only the sign of the value counts:
+     * negative, zero and positive priorities are three levels, and messages within a level
+     * are shown in the order they were queued.
+     *
+     * @see #PRIORITY_HIGH
+     * @see #PRIORITY_NORMAL
+     * @see #PRIORITY_LOW
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * @return An id unique to this AppMsg, as found in
+     * {@link #dumpFlightRecorder(java.io.PrintWriter)}.
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return The tag of this message's group, or <code>null</code>.
+     */
+    public Object getTag() {
+        return mTag;
+    }
+
+    /**
+     * Puts this message in a group, so that the whole group can be cancelled at once with
+     * {@link #cancelByTag(android.app.Activity, Object)}. Must be set before {@link #show()}.
+     *
+     * @param tag The tag of the group, compared with {@link Object#equals(Object)}.
+     */
+    public AppMsg setTag(Object tag) {
+        mTag = tag;
+        return this;
+    }
+
+    /**
+     * @return
+     * Provided parent to add {@link #getView()} to using {@link #getLayoutParams()}.
+     */
+    public ViewGroup getParent() {
+        return mParent != null ? mParent.get() : null;
+    }
+
+    /**
+     * Provide a different parent than Activity decor view
+     * @param parent
+     * Provided parent to add {@link #getView()} to using {@link #getLayoutParams()}.
+     *
+     */
+    public void setParent(ViewGroup parent) {
+        // The parent belongs to the Activity's view hierarchy, which keeps it alive
+        mParent = parent != null ? new WeakReference<ViewGroup>(parent) : null;
+    }
+
+    /**
+     * Provide a different parent than Activity decor view
+     *
+     * @param parentId
+     * Provided parent id to add {@link #getView()} to using {@link #getLayoutParams()}.
+     *
+     */
+    public void setParent(int parentId) {
+        final Activity activity = getActivity();
+        if (activity != null) {
+            setParent((ViewGroup) activity.findViewById(parentId));
+        }
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when queued {@link AppMsg}s
+     * release memory.
+     *
+     * @see #setOnTrimMemoryListener(OnTrimMemoryListener)
+     */
+    public interface OnTrimMemoryListener {
+
+        /**
+         * Called after queued {@link AppMsg}s have released memory.
+         *
+         * @param level         The trim level that caused the release.
+         * @param releasedViews Number of released views.
+         * @param weight        The released views and animations weighted with a fixed
+         *                      nominal size each, 512 bytes per view and 128 per animation.
+         *                      Drawables aren't accounted, and nothing is reclaimed until
+         *                      garbage collected, so only compare it between calls.
+         */
+        void onTrimMemory(int level, int releasedViews, long weight);
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when the animation mode changes.
+     *
+     * @see #setOnAnimationModeListener(OnAnimationModeListener)
+     */
+    public interface OnAnimationModeListener {
+
+        /**
+         * Called on the main thread.
+         *
+         * @param mode One of {@link #ANIMATIONS_FULL}, {@link #ANIMATIONS_SHORT} and
+         *             {@link #ANIMATIONS_OFF}.
+         */
+        void onAnimationModeChanged(int mode);
+    }
+
+    /**
+     * Tells whether the UI is busy, e.g. scrolling, so that held {@link AppMsg}s keep waiting.
+     *
+     * @see #setIdleDispatch(int, BusySignal)
+     */
+    public interface BusySignal {
+
+        /**
+         * Called on the main thread when it's idle.
+         *
+         * @return <code>true</code> to keep holding messages.
+         */
+        boolean isBusy();
+    }
+
+    /**
+     * <p>Source of the text of a {@link AppMsg}, resolved only once the AppMsg gets
+     * displayed, so that messages that never are don't pay for resources lookups or
+     * formatting.</p>
+     *
+     * <p>Subclass it to provide the text any other way.</p>
+     *
+     * @see #makeText(android.app.Activity, TextSource, Style)
+     */
+    public abstract static class TextSource {
+
+        private static final int CACHE_SIZE = 32;
+
+        /** Recently formatted texts, accessed from the main thread only. */
+        private static final Map<FormatKey, String> sCache =
+                new LinkedHashMap<FormatKey, String>(CACHE_SIZE, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<FormatKey, String> eldest) {
+                        return size() > CACHE_SIZE;
+                    }
+                };
+
+        /**
+         * @return The text to show.
+         */
+        public abstract CharSequence getText(Context context);
+
+        /**
+         * @param resId The resource id of the string resource to use. Can be formatted text.
+         */
+        public static TextSource fromResource(final int resId) {
+            return new TextSource() {
+                @Override
+                public CharSequence getText(Context context) {
+                    return context.getResources().getText(resId);
+                }
+            };
+        }
+
+        /**
+         * Formats a string resource with given arguments, see
+         * {@link android.content.res.Resources#getString(int, Object...)}. Formatted texts are
+         * cached, so the arguments should be immutable.
+         */
+        public static TextSource format(final int resId, final Object... args) {
+            return new TextSource() {
+                @Override
+                public CharSequence getText(Context context) {
+                    return formatCached(context, resId, null, args);
+                }
+            };
+        }
+
+        /**
+         * Formats a template with given arguments, see
+         * {@link String#format(java.util.Locale, String, Object...)}. Formatted texts are
+         * cached, so the arguments should be immutable.
+         */
+        public static TextSource format(final String template, final Object... args) {
+            return new TextSource() {
+                @Override
+                public CharSequence getText(Context context) {
+                    return formatCached(context, 0, template, args);
+                }
+            };
+        }
+
+        private static String formatCached(Context context, int resId, String template,
+                Object[] args) {
+            final Resources resources = context.getResources();
+            final Locale locale = resources.getConfiguration().locale;
+            final FormatKey key = new FormatKey(resId, template, args, locale);
+            String text = sCache.get(key);
+            if (text == null) {
+                text = template != null
+                        ? String.format(locale, template, args)
+                        : resources.getString(resId, args);
+                sCache.put(key, text);
+            }
+            return text;
+        }
+
+        static void clearCache() {
+            sCache.clear();
+        }
+    }
+
+    private static final class FormatKey {
+        private final int mResId;
+        private final String mTemplate;
+        private final Object[] mArgs;
+        private final Locale mLocale;
+        private final int mHashCode;
+
+        FormatKey(int resId, String template, Object[] args, Locale locale) {
+            mResId = resId;
+            mTemplate = template;
+            mArgs = args;
+            mLocale = locale;
+            int result = resId;
+            result = 31 * result + (template != null ? template.hashCode() : 0);
+            result = 31 * result + Arrays.hashCode(args);
+            result = 31 * result + (locale != null ? locale.hashCode() : 0);
+            mHashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FormatKey)) {
+                return false;
+            }
+            final FormatKey other = (FormatKey) o;
+            return mResId == other.mResId
+                    && (mTemplate != null ? mTemplate.equals(other.mTemplate) : other.mTemplate == null)
+                    && Arrays.equals(mArgs, other.mArgs)
+                    && (mLocale != null ? mLocale.equals(other.mLocale) : other.mLocale == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /**
+     * <p>Makes an {@link AppMsg}, it's what all the makeText() methods go through. By default
+     * the message floats and is made from {@link R.layout#app_msg} with {@link #STYLE_INFO}.</p>
+     *
+     * <pre>
+     * new AppMsg.Builder(activity)
+     *         .setText(R.string.saved)
+     *         .setStyle(AppMsg.STYLE_CONFIRM)
+     *         .setOnClickListener(listener)
+     *         .build()
+     *         .show();
+     * </pre>
+     */
+    public static class Builder {
+        private final Activity mContext;
+        private CharSequence mText;
+        private TextSource mTextSource;
+        private Style mStyle = STYLE_INFO;
+        private int mLayoutId = R.layout.app_msg;
+        private View mView;
+        private boolean mFloating = true;
+        private float mTextSize;
+        private OnClickListener mClickListener;
+
+        /**
+         * @param context The Activity to show the message in.
+         */
+        public Builder(Activity context) {
+            mContext = context;
+        }
+
+        /**
+         * Set the text to show. Can be formatted text.
+         */
+        public Builder setText(CharSequence text) {
+            mText = text;
+            mTextSource = null;
+            return this;
+        }
+
+        /**
+         * Set the text to show from a string resource, it's resolved once the message gets
+         * displayed.
+         */
+        public Builder setText(int resId) {
+            return setText(TextSource.fromResource(resId));
+        }
+
+        /**
+         * Set the source of the text to show, it's resolved once the message gets displayed.
+         */
+        public Builder setText(TextSource text) {
+            mText = null;
+            mTextSource = text;
+            return this;
+        }
+
+        /**
+         * Set the style with a background and a duration.
+         */
+        public Builder setStyle(Style style) {
+            mStyle = style;
+            return this;
+        }
+
+        /**
+         * Set a custom layout. The layout must have a {@link TextView} with id
+         * {@link android.R.id#message}.
+         */
+        public Builder setLayout(int layoutId) {
+            mLayoutId = layoutId;
+            mView = null;
+            return this;
+        }
+
+        /**
+         * Set a custom view, instead of a layout. The view must have a {@link TextView} with id
+         * {@link android.R.id#message}.
+         */
+        public Builder setView(View view) {
+            mView = view;
+            return this;
+        }
+
+        /**
+         * Set whether the message floats over the content, or is presented inside the layout.
+         */
+        public Builder setFloating(boolean floating) {
+            mFloating = floating;
+            return this;
+        }
+
+        /**
+         * Set the text size, or <code>0</code> for the one of the style.
+         */
+        public Builder setTextSize(float textSize) {
+            mTextSize = textSize;
+            return this;
+        }
+
+        public Builder setOnClickListener(OnClickListener clickListener) {
+            mClickListener = clickListener;
+            return this;
+        }
+
+        /**
+         * Make the {@link AppMsg}. A layout is inflated at once, unless the text is resolved
+         * later or {@link AppMsg#setAsyncInflation(boolean) async inflation} is on, in which
+         * case it's inflated once needed.
+         */
+        public AppMsg build() {
+            final AppMsg result = new AppMsg(mContext);
+            result.mDuration = mStyle.duration;
+            result.mFloating = mFloating;
+            result.mText = mText;
+            result.mTextSource = mTextSource;
+            result.mStyle = mStyle;
+            result.mTextSize = mTextSize;
+            result.mClickListener = mClickListener;
+            if (mView != null) {
+                result.mView = result.bindView(mView);
+            } else {
+                result.mLayoutId = mLayoutId;
+                if (mTextSource == null && !MsgInflater.sEnabled) {
+                    result.mView = result.bindView(
+                            obtainView(mContext, mLayoutId, result.isRecyclable()));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The views of an {@link AppMsg} that get bound, looked up once per view and kept in a
+     * tag on it, so that rebinding a recycled view or setting the text doesn't search the
+     * hierarchy again. Before API 14 they are looked up each time.
+     */
+    static final class ViewHolder {
+        final TextView message;
+        final ProgressBar progress;
+
+        private ViewHolder(View view) {
+            message = (TextView) view.findViewById(android.R.id.message);
+            final View bar = view.findViewById(android.R.id.progress);
+            progress = bar instanceof ProgressBar ? (ProgressBar) bar : null;
+        }
+
+        static ViewHolder of(View view) {
+            if (SDK_INT < ICE_CREAM_SANDWICH) {
+                // Keyed tags live in a static map keyed by the view until then, and the holder
+                // references a child of the view, so neither would ever be collected
+                return new ViewHolder(view);
+            }
+            final Object tag = view.getTag(R.id.appmsg_holder);
+            if (tag instanceof ViewHolder) {
+                return (ViewHolder) tag;
+            }
+            final ViewHolder holder = new ViewHolder(view);
+            view.setTag(R.id.appmsg_holder, holder);
+            return holder;
+        }
+    }
+
+    /**
+     * <p>Updates an {@link AppMsg} in place, e.g. "Uploading 37%", instead of cancelling it
+     * and making a new one. The view isn't inflated nor animated again and the queue is
+     * left as it is.</p>
+     *
+     * <p>Updates are applied at most once per frame, with the last values set, so it's fine
+     * to call it for each progress event. It must be used from the main thread.</p>
+     *
+     * @see #getUpdater()
+     */
+    public final class Updater {
+
+        /** Delay between updates before API 16, the frame delay of animations. */
+        private static final long FRAME_DELAY = 10;
+
+        private CharSequence mPendingText;
+        private boolean mTextPending;
+        private int mPendingProgress = -1;
+        private boolean mResetPending;
+        private boolean mScheduled;
+        private Object mFrameCallback;
+        private Handler mHandler;
+        private Runnable mFrameRunnable;
+
+        Updater() {
+        }
+
+        /**
+         * Set the text, see {@link AppMsg#setText(CharSequence)}.
+         */
+        public Updater setText(CharSequence text) {
+            mPendingText = text;
+            mTextPending = true;
+            schedule();
+            return this;
+        }
+
+        /**
+         * Set the text from a resource, see {@link AppMsg#setText(int)}.
+         */
+        public Updater setText(int resId) {
+            final Activity activity = getActivity();
+            if (activity != null) {
+                setText(activity.getText(resId));
+            }
+            return this;
+        }
+
+        /**
+         * Set the progress of a {@link ProgressBar} with id {@link android.R.id#progress} in
+         * the view of the AppMsg, if there is one.
+         */
+        public Updater setProgress(int progress) {
+            if (progress < 0) {
+                throw new IllegalArgumentException("progress < 0");
+            }
+            mPendingProgress = progress;
+            schedule();
+            return this;
+        }
+
+        /**
+         * Restart the duration of the AppMsg if it's displayed, so that it stays displayed
+         * while it's updated.
+         */
+        public Updater resetDuration() {
+            mResetPending = true;
+            schedule();
+            return this;
+        }
+
+        @TargetApi(JELLY_BEAN)
+        private void schedule() {
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+            if (SDK_INT >= JELLY_BEAN) {
+                if (mFrameCallback == null) {
+                    mFrameCallback = new FrameCallbackJb(this);
+                }
+                Choreographer.getInstance()
+                        .postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+            } else {
+                if (mHandler == null) {
+                    mHandler = new Handler(Looper.getMainLooper());
+                    mFrameRunnable = new Runnable() {
+                        @Override
+                        public void run() {
+                            apply();
+                        }
+                    };
+                }
+                mHandler.postDelayed(mFrameRunnable, FRAME_DELAY);
+            }
+        }
+
+        void apply() {
+            mScheduled = false;
+            if (mTextPending) {
+                final CharSequence text = mPendingText;
+                mPendingText = null;
+                mTextPending = false;
+                applyText(text);
+            }
+            if (mPendingProgress >= 0) {
+                applyProgress(mPendingProgress);
+                mPendingProgress = -1;
+            }
+            if (mResetPending) {
+                mResetPending = false;
+                if (mManager != null) {
+                    mManager.resetTimer(AppMsg.this);
+                }
+            }
+        }
+    }
+
+    @TargetApi(JELLY_BEAN)
+    private static class FrameCallbackJb implements Choreographer.FrameCallback {
+        private final Updater mUpdater;
+
+        FrameCallbackJb(Updater updater) {
+            mUpdater = updater;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mUpdater.apply();
+        }
+    }
+
+    /**
+     * The style for a {@link AppMsg}.
+     *
+     * @author e.shishkin
+     */
+    public static class Style {
+
+        private final int duration;
+        private final int background;
+        private final float textSize;
+        private final Typeface typeface;
+        private final int textColor;
+
+        // Resources resolved for the last configuration, see #apply(View, TextView, float)
+        private Configuration mConfiguration;
+        private Drawable.ConstantState mBackgroundState;
+        private int mResolvedTextColor;
+
+        /**
          * Construct an {@link AppMsg.Style} object.
          *
          * @param duration How long to display the message. Either
@@ -697,8 +1861,28 @@ public class AppMsg {
          * @param resId    resource for AppMsg background
          */
         public Style(int duration, int resId) {
+            this(duration, resId, 0, null, 0);
+        }
+
+        /**
+         * Construct an {@link AppMsg.Style} object that also styles the text.
+         *
+         * @param duration       How long to display the message. Either
+         *                       {@link #LENGTH_SHORT} or {@link #LENGTH_LONG}
+         * @param resId          resource for AppMsg background
+         * @param textSize       text size in scaled pixels, or <code>0</code> to keep the one
+         *                       of the layout
+         * @param typeface       typeface of the text, or <code>null</code> to keep the one
+         *                       of the layout
+         * @param textColorResId color resource for the text, or <code>0</code> to keep the one
+         *                       of the layout
+         */
+        public Style(int duration, int resId, float textSize, Typeface typeface, int textColorResId) {
             this.duration = duration;
             this.background = resId;
+            this.textSize = textSize;
+            this.typeface = typeface;
+            this.textColor = textColorResId;
         }
 
         /**
@@ -715,6 +1899,72 @@ public class AppMsg {
             return background;
         }
 
+        /**
+         * Return the text size in scaled pixels, <code>0</code> if not set.
+         */
+        public float getTextSize() {
+            return textSize;
+        }
+
+        /**
+         * Return the typeface of the text, <code>null</code> if not set.
+         */
+        public Typeface getTypeface() {
+            return typeface;
+        }
+
+        /**
+         * Return the color resource id of the text, <code>0</code> if not set.
+         */
+        public int getTextColor() {
+            return textColor;
+        }
+
+        /**
+         * @return Whether this style changes the text size, typeface or text color.
+         */
+        boolean stylesText() {
+            return textSize > 0 || typeface != null || textColor != 0;
+        }
+
+        /**
+         * Applies this style to the view of an {@link AppMsg}. Resources are resolved once per
+         * configuration, after that each background is a new Drawable sharing the cached
+         * {@link Drawable.ConstantState}.
+         *
+         * @param textSize Text size overriding the one of this style, if greater than 0.
+         */
+        @SuppressWarnings("deprecation")
+        synchronized void apply(View view, TextView tv, float textSize) {
+            final Resources res = view.getResources();
+            final Configuration config = res.getConfiguration();
+            final Drawable drawable;
+            if (mConfiguration == null || mConfiguration.diff(config) != 0) {
+                drawable = res.getDrawable(background);
+                mBackgroundState = drawable.getConstantState();
+                mResolvedTextColor = textColor != 0 ? res.getColor(textColor) : 0;
+                mConfiguration = new Configuration(config);
+            } else if (mBackgroundState != null) {
+                drawable = mBackgroundState.newDrawable(res);
+            } else {
+                drawable = res.getDrawable(background);
+            }
+            view.setBackgroundDrawable(drawable);
+
+            if (textSize <= 0) {
+                textSize = this.textSize;
+            }
+            if (textSize > 0) {
+                tv.setTextSize(textSize);
+            }
+            if (typeface != null) {
+                tv.setTypeface(typeface);
+            }
+            if (textColor != 0) {
+                tv.setTextColor(mResolvedTextColor);
+            }
+        }
+
         @Override
         public boolean equals(Object o) {
             if (!(o instanceof AppMsg.Style)) {
@@ -722,7 +1972,10 @@ public class AppMsg {
             }
             Style style = (Style) o;
             return style.duration == duration
-                    && style.background == background;
+                    && style.background == background
+                    && style.textSize == textSize
+                    && (style.typeface == null ? typeface == null : style.typeface.equals(typeface))
+                    && style.textColor == textColor;
         }
 
     }
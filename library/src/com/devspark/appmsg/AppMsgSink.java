@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * <p>Shows the items of a stream as {@link AppMsg}s, with backpressure: items are only
+ * requested from upstream as displayed messages go away, so a slow display throttles the
+ * producer instead of piling up messages in the queue.</p>
+ *
+ * <p>It follows the Reactive Streams <code>Subscriber</code> protocol, and is easily
+ * bridged to RxJava, Reactor or <code>java.util.concurrent.Flow</code>: forward
+ * <code>onSubscribe</code>, <code>onNext</code>, <code>onError</code> and
+ * <code>onComplete</code>, wrapping the upstream subscription in a {@link Subscription}.
+ * Items may be delivered on any thread, messages are shown on the main thread.</p>
+ *
+ * <pre>
+ * AppMsgSink&lt;Event&gt; sink = new AppMsgSink&lt;Event&gt;(activity, 3,
+ *         new AppMsgSink.MsgFactory&lt;Event&gt;() {
+ *             public AppMsg makeMsg(Activity activity, Event event) {
+ *                 return AppMsg.makeText(activity, event.getMessage(), AppMsg.STYLE_INFO);
+ *             }
+ *         });
+ * </pre>
+ *
+ * @param <T> Type of the items.
+ */
+public class AppMsgSink<T> {
+
+    /**
+     * The link to the upstream producer.
+     */
+    public interface Subscription {
+
+        /**
+         * Asks for <code>n</code> more items.
+         */
+        void request(long n);
+
+        /**
+         * Asks to stop sending items.
+         */
+        void cancel();
+    }
+
+    /**
+     * Makes the {@link AppMsg} showing an item.
+     */
+    public interface MsgFactory<T> {
+
+        /**
+         * Called on the main thread.
+         *
+         * @return The message to show, or <code>null</code> to skip the item.
+         */
+        AppMsg makeMsg(Activity activity, T item);
+    }
+
+    private final WeakReference<Activity> mActivity;
+    private final int mCapacity;
+    private final MsgFactory<T> mFactory;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile Subscription mSubscription;
+    private volatile boolean mDone;
+
+    private final MsgManager.RemovalListener mRemovalListener = new MsgManager.RemovalListener() {
+        @Override
+        public void onRemoved(AppMsg appMsg) {
+            requestNext();
+        }
+    };
+
+    /**
+     * @param activity The Activity to show messages in. Upstream is cancelled once it
+     *                 finishes, and it isn't held strongly.
+     * @param capacity The maximum number of messages queued or displayed at once.
+     * @param factory  Makes the messages.
+     */
+    public AppMsgSink(Activity activity, int capacity, MsgFactory<T> factory) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mActivity = new WeakReference<Activity>(activity);
+        mCapacity = capacity;
+        mFactory = factory;
+    }
+
+    /**
+     * Called once upstream is ready, requests as many items as the capacity.
+     */
+    public void onSubscribe(Subscription subscription) {
+        if (mSubscription != null || mDone) {
+            subscription.cancel();
+            return;
+        }
+        mSubscription = subscription;
+        subscription.request(mCapacity);
+    }
+
+    /**
+     * Shows an item, from any thread.
+     */
+    public void onNext(final T item) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                showItem(item);
+            }
+        });
+    }
+
+    /**
+     * Called when upstream fails, no more items are requested.
+     */
+    public void onError(Throwable t) {
+        mDone = true;
+    }
+
+    /**
+     * Called when upstream has no more items, no more items are requested.
+     */
+    public void onComplete() {
+        mDone = true;
+    }
+
+    /**
+     * Cancels the upstream subscription. Messages already shown are left as they are.
+     */
+    public void cancel() {
+        mDone = true;
+        final Subscription subscription = mSubscription;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    private void showItem(T item) {
+        final Activity activity = mActivity.get();
+        if (activity == null || activity.isFinishing()) {
+            cancel();
+            return;
+        }
+        final AppMsg appMsg = mFactory.makeMsg(activity, item);
+        if (appMsg == null) {
+            requestNext();
+            return;
+        }
+        appMsg.mRemovalListener = mRemovalListener;
+        appMsg.show();
+    }
+
+    private void requestNext() {
+        if (mDone) {
+            return;
+        }
+        final Activity activity = mActivity.get();
+        if (activity == null || activity.isFinishing()) {
+            cancel();
+            return;
+        }
+        mSubscription.request(1);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import java.util.Queue;
+
+/**
+ * Decides what happens next to queued messages: whether the head of the queue gets displayed,
+ * waits for the main thread to be idle or for displayed messages to go, and which displayed
+ * messages an urgent one interrupts. Plain Java, so that {@link QueueSimulator} shares it with
+ * {@link MsgManager}, which only carry the decisions out.
+ *
+ * @param <E> Type of the queued messages.
+ */
+abstract class DispatchPolicy<E> {
+
+    /** Nothing to do until a message is added or removed. */
+    static final int DISPATCH_NONE = 0;
+    /** The head waits for the main thread to be idle. */
+    static final int DISPATCH_IDLE = 1;
+    /** The head gets displayed. */
+    static final int DISPATCH_ADD_VIEW = 2;
+    /** The head is displayed, look at the queue again once it's gone. */
+    static final int DISPATCH_NEXT = 3;
+
+    /** Delay before checking the busy signal again, so that a busy UI going idle is noticed. */
+    static final long BUSY_RECHECK_DELAY = 100;
+
+    abstract int priority(E e);
+
+    abstract boolean isShowing(E e);
+
+    abstract boolean isSticky(E e);
+
+    /**
+     * @return Whether the message is displayed with a running timer, so neither sticky
+     * nor on its way.
+     */
+    abstract boolean isTimed(E e);
+
+    /**
+     * @see AppMsg#setPreemption(int, boolean)
+     */
+    abstract int preemptionThreshold();
+
+    /**
+     * @see AppMsg#setIdleDispatch(int, AppMsg.BusySignal)
+     */
+    abstract int idleThreshold();
+
+    /**
+     * @return Whether several messages may be displayed at once.
+     * @see JankMonitor#allowsConcurrent()
+     */
+    abstract boolean allowsConcurrent();
+
+    /**
+     * @param paused Whether the Activity is stopped.
+     * @return One of the <code>DISPATCH_*</code> constants for the head of the queue.
+     */
+    int next(Queue<E> queue, boolean paused, boolean idle) {
+        if (paused || queue.isEmpty()) {
+            return DISPATCH_NONE;
+        }
+        final E head = queue.peek();
+        if (isShowing(head)) {
+            return isSticky(head) ? DISPATCH_NONE : DISPATCH_NEXT;
+        }
+        if (priority(head) < idleThreshold() && !idle) {
+            return DISPATCH_IDLE;
+        }
+        if (!allowsConcurrent() && isShowingAny(queue)) {
+            return DISPATCH_NONE; // Displayed once the current one is removed
+        }
+        return DISPATCH_ADD_VIEW;
+    }
+
+    /**
+     * @return Whether a message just added interrupts displayed ones.
+     */
+    boolean preempts(E e, boolean paused) {
+        return priority(e) > preemptionThreshold() && !paused;
+    }
+
+    /**
+     * @return Whether a displayed message gets interrupted by an urgent one.
+     */
+    boolean isPreemptedBy(E e, E urgent) {
+        return e != urgent && priority(e) <= preemptionThreshold() && isTimed(e);
+    }
+
+    /**
+     * @return The time left to a message whose timer is stopped, never 0 so that it still
+     * counts as left.
+     */
+    static long remaining(long removeAt, long now) {
+        return Math.max(1, removeAt - now);
+    }
+
+    private boolean isShowingAny(Queue<E> queue) {
+        for (E e : queue) {
+            if (isShowing(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
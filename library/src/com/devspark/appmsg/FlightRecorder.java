@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import java.io.PrintWriter;
+
+/**
+ * Always-on record of the last lifecycle events of {@link AppMsg}s, to find out afterwards
+ * why a message got stuck or never appeared. Events go into a fixed ring of primitive arrays,
+ * so recording one doesn't allocate nor lock, its cost is that of {@link System#nanoTime()}.
+ * Recording is meant for the main thread, an event recorded concurrently from another thread
+ * may be overwritten.
+ *
+ * @see AppMsg#dumpFlightRecorder(java.io.PrintWriter)
+ */
+final class FlightRecorder {
+
+    /** An {@link AppMsg} was queued. */
+    static final int EVENT_ADD = 1;
+    /** The view of an {@link AppMsg} was added. */
+    static final int EVENT_SHOW = 2;
+    /** An {@link AppMsg} couldn't be displayed, its Activity or view is gone. */
+    static final int EVENT_DROP = 3;
+    /** The view of an {@link AppMsg} started going away. */
+    static final int EVENT_HIDE = 4;
+    /** An {@link AppMsg} left its queue. */
+    static final int EVENT_CLEAR = 5;
+    /** All {@link AppMsg}s of a queue were cleared, the id is their number. */
+    static final int EVENT_CLEAR_ALL = 6;
+    /** An Activity was released, the id is its identity hash code. */
+    static final int EVENT_RELEASE = 7;
+    /** An Activity was paused, the id is its identity hash code. */
+    static final int EVENT_PAUSE = 8;
+    /** An Activity was resumed, the id is its identity hash code. */
+    static final int EVENT_RESUME = 9;
+
+    private static final String[] EVENT_NAMES = {
+            null, "add", "show", "drop", "hide", "clear", "clearAll", "release", "pause", "resume"
+    };
+
+    /** Number of events kept, a power of two. */
+    private static final int CAPACITY = 512;
+
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final int[] sIds = new int[CAPACITY];
+    /** Number of events recorded so far. */
+    private static int sCount;
+
+    private FlightRecorder() {
+    }
+
+    static void record(int event, int id) {
+        final int index = sCount++ & (CAPACITY - 1);
+        sTimes[index] = System.nanoTime();
+        sEvents[index] = event;
+        sIds[index] = id;
+    }
+
+    /**
+     * Writes the recorded events, oldest first, with their age in milliseconds.
+     */
+    static void dump(PrintWriter writer) {
+        final long now = System.nanoTime();
+        final int count = sCount;
+        final int first = Math.max(0, count - CAPACITY);
+        writer.println("AppMsg flight recorder, " + (count - first) + " of " + count + " events");
+        for (int i = first; i < count; i++) {
+            final int index = i & (CAPACITY - 1);
+            final int event = sEvents[index];
+            final String name = event > 0 && event < EVENT_NAMES.length
+                    ? EVENT_NAMES[event] : String.valueOf(event);
+            writer.println(String.format("  -%.3fms %s %d",
+                    (now - sTimes[index]) / 1000000.0, name, sIds[index]));
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import android.annotation.TargetApi;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
+import static com.devspark.appmsg.AppMsg.ANIMATIONS_FULL;
+import static com.devspark.appmsg.AppMsg.ANIMATIONS_OFF;
+import static com.devspark.appmsg.AppMsg.ANIMATIONS_SHORT;
+
+/**
+ * Watches frame timing with {@link Choreographer} (API 16+) around {@link AppMsg} activity,
+ * and degrades the animations of {@link AppMsg}s while frames are being dropped. Frames are
+ * only watched for a while after something happened in a queue, so an idle app isn't kept
+ * rendering.
+ *
+ * @see AppMsg#setJankAdaptive(boolean)
+ */
+final class JankMonitor {
+
+    /** Frames per evaluation. */
+    private static final int WINDOW = 30;
+    /** Janky frames in a window that degrade the mode by one step. */
+    private static final int DEGRADE_THRESHOLD = WINDOW / 4;
+    /** Janky frames in a window up to which the mode recovers by one step. */
+    private static final int RECOVER_THRESHOLD = 1;
+    /** How long frames are watched after the last {@link #watch()}. */
+    private static final long WATCH_DURATION = 5000;
+    private static final long DEFAULT_FRAME_INTERVAL = 1000000000L / 60;
+    private static final long MIN_FRAME_INTERVAL = 1000000000L / 240;
+
+    static boolean sEnabled;
+    static int sMode = ANIMATIONS_FULL;
+    static AppMsg.OnAnimationModeListener sListener;
+
+    private static Object sCallback;
+    private static boolean sWatching;
+    private static long sWatchUntil;
+    private static long sLastFrameTime;
+    private static long sFrameInterval = DEFAULT_FRAME_INTERVAL;
+    private static int sFrames;
+    private static int sJankyFrames;
+
+    private JankMonitor() {
+    }
+
+    /**
+     * Watches frames for a while, to be called on the main thread when a queue changes.
+     */
+    @TargetApi(JELLY_BEAN)
+    static void watch() {
+        if (!sEnabled || SDK_INT < JELLY_BEAN) {
+            return;
+        }
+        sWatchUntil = SystemClock.uptimeMillis() + WATCH_DURATION;
+        if (!sWatching) {
+            sWatching = true;
+            sLastFrameTime = 0;
+            if (sCallback == null) {
+                sCallback = new FrameCallbackJb();
+            }
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) sCallback);
+        }
+    }
+
+    /**
+     * @return Whether several messages may be displayed at once, which costs more to composite.
+     */
+    static boolean allowsConcurrent() {
+        return sMode == ANIMATIONS_FULL;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+        if (!enabled) {
+            sFrames = 0;
+            sJankyFrames = 0;
+            setMode(ANIMATIONS_FULL);
+        }
+    }
+
+    /**
+     * @return Whether to keep watching.
+     */
+    private static boolean onFrame(long frameTimeNanos) {
+        if (!sEnabled || SystemClock.uptimeMillis() > sWatchUntil) {
+            sWatching = false;
+            return false;
+        }
+        if (sLastFrameTime > 0) {
+            final long interval = frameTimeNanos - sLastFrameTime;
+            if (interval >= MIN_FRAME_INTERVAL && interval < sFrameInterval * 9 / 10) {
+                sFrameInterval = interval; // Higher refresh rate than assumed
+            }
+            if (interval > sFrameInterval * 3 / 2) {
+                sJankyFrames++;
+            }
+            if (++sFrames == WINDOW) {
+                evaluate();
+            }
+        }
+        sLastFrameTime = frameTimeNanos;
+        return true;
+    }
+
+    private static void evaluate() {
+        if (sJankyFrames >= DEGRADE_THRESHOLD && sMode != ANIMATIONS_OFF) {
+            setMode(sMode == ANIMATIONS_FULL ? ANIMATIONS_SHORT : ANIMATIONS_OFF);
+        } else if (sJankyFrames <= RECOVER_THRESHOLD && sMode != ANIMATIONS_FULL) {
+            setMode(sMode == ANIMATIONS_OFF ? ANIMATIONS_SHORT : ANIMATIONS_FULL);
+        }
+        sFrames = 0;
+        sJankyFrames = 0;
+    }
+
+    private static void setMode(int mode) {
+        if (mode == sMode) {
+            return;
+        }
+        sMode = mode;
+        if (sListener != null) {
+            sListener.onAnimationModeChanged(mode);
+        }
+    }
+
+    @TargetApi(JELLY_BEAN)
+    private static class FrameCallbackJb implements Choreographer.FrameCallback {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (onFrame(frameTimeNanos)) {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    }
+}
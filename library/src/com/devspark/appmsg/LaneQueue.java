@@ -0,0 +1,287 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Queue of messages with one FIFO lane per priority level, an alternative to a
+ * {@link java.util.PriorityQueue} when messages mostly use the predefined priorities.
+ * Adding and polling are O(1), and messages with the same level keep the order in which
+ * they were added.
+ *
+ * @param <E> Type of the queued messages.
+ * @see MsgOrder#priorityLevel(int)
+ */
+class LaneQueue<E> extends AbstractQueue<E> {
+
+    private final Lane<E>[] mLanes;
+    private final MsgOrder<E> mOrder;
+    private int mSize;
+
+    /**
+     * @param order Gives the lane of each message, and picks between the heads of the lanes
+     *              so that aged messages can get ahead of higher lanes.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    LaneQueue(MsgOrder<E> order) {
+        mOrder = order;
+        mLanes = new Lane[MsgOrder.LEVEL_COUNT];
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new Lane<E>();
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        mLanes[mOrder.level(e)].add(e);
+        mSize++;
+        return true;
+    }
+
+    @Override
+    public E peek() {
+        final Lane<E> lane = headLane();
+        return lane != null ? lane.peek() : null;
+    }
+
+    @Override
+    public E poll() {
+        final Lane<E> lane = headLane();
+        if (lane == null) {
+            return null;
+        }
+        mSize--;
+        return lane.poll();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o != null && o == peek()) {
+            poll();
+            return true;
+        }
+        // The priority may have changed since it was added, look into every lane
+        for (Lane<E> lane : mLanes) {
+            if (lane.remove(o)) {
+                mSize--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all given messages in a single pass over each lane.
+     */
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean modified = false;
+        for (Lane<E> lane : mLanes) {
+            final int removed = lane.removeAll(c);
+            mSize -= removed;
+            modified |= removed > 0;
+        }
+        return modified;
+    }
+
+    @Override
+    public void clear() {
+        for (Lane<E> lane : mLanes) {
+            lane.clear();
+        }
+        mSize = 0;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Iterates from the highest lane to the lowest one, each lane in FIFO order.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private int mLane = mLanes.length - 1;
+            private int mIndex;
+
+            @Override
+            public boolean hasNext() {
+                while (mLane >= 0 && mIndex >= mLanes[mLane].size) {
+                    mLane--;
+                    mIndex = 0;
+                }
+                return mLane >= 0;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mLanes[mLane].get(mIndex++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Iterates in the order in which messages would be polled, without polling them: the
+     * lanes are merged, picking between their next messages as {@link #poll()} picks between
+     * their heads.
+     */
+    Iterator<E> orderedIterator() {
+        return new Iterator<E>() {
+            private final int[] mIndexes = new int[mLanes.length];
+
+            @Override
+            public boolean hasNext() {
+                return nextLane() >= 0;
+            }
+
+            @Override
+            public E next() {
+                final int lane = nextLane();
+                if (lane < 0) {
+                    throw new NoSuchElementException();
+                }
+                return mLanes[lane].get(mIndexes[lane]++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private int nextLane() {
+                int next = -1;
+                for (int i = mLanes.length - 1; i >= 0; i--) {
+                    if (mIndexes[i] < mLanes[i].size && (next < 0 || mOrder.compare(
+                            mLanes[i].get(mIndexes[i]), mLanes[next].get(mIndexes[next])) < 0)) {
+                        next = i;
+                    }
+                }
+                return next;
+            }
+        };
+    }
+
+    private Lane<E> headLane() {
+        Lane<E> head = null;
+        for (int i = mLanes.length - 1; i >= 0; i--) {
+            final Lane<E> lane = mLanes[i];
+            if (lane.size > 0 && (head == null || mOrder.compare(lane.peek(), head.peek()) < 0)) {
+                head = lane;
+            }
+        }
+        return head;
+    }
+
+    /**
+     * Growable ring buffer.
+     */
+    private static class Lane<E> {
+        private Object[] mItems = new Object[4];
+        private int mHead;
+        int size;
+
+        void add(E e) {
+            if (size == mItems.length) {
+                final Object[] items = new Object[size * 2];
+                for (int i = 0; i < size; i++) {
+                    items[i] = get(i);
+                }
+                mItems = items;
+                mHead = 0;
+            }
+            mItems[(mHead + size) % mItems.length] = e;
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        E get(int index) {
+            return (E) mItems[(mHead + index) % mItems.length];
+        }
+
+        E peek() {
+            return size > 0 ? get(0) : null;
+        }
+
+        E poll() {
+            if (size == 0) {
+                return null;
+            }
+            final E e = get(0);
+            mItems[mHead] = null;
+            mHead = (mHead + 1) % mItems.length;
+            size--;
+            return e;
+        }
+
+        boolean remove(Object o) {
+            for (int i = 0; i < size; i++) {
+                if (get(i) == o) {
+                    // Close the gap, keeping the order of the following items
+                    for (int j = i; j < size - 1; j++) {
+                        mItems[(mHead + j) % mItems.length] = get(j + 1);
+                    }
+                    mItems[(mHead + size - 1) % mItems.length] = null;
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int removeAll(Collection<?> c) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                final E e = get(i);
+                if (!c.contains(e)) {
+                    mItems[(mHead + kept) % mItems.length] = e;
+                    kept++;
+                }
+            }
+            for (int i = kept; i < size; i++) {
+                mItems[(mHead + i) % mItems.length] = null;
+            }
+            final int removed = size - kept;
+            size = kept;
+            return removed;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                mItems[(mHead + i) % mItems.length] = null;
+            }
+            mHead = 0;
+            size = 0;
+        }
+    }
+}
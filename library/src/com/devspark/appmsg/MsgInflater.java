@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Inflates the views of {@link AppMsg}s on a background thread, in the manner of
+ * <code>AsyncLayoutInflater</code>, and shows them on the main thread once they are ready.
+ * Layouts that can't be inflated off the main thread are inflated when displayed instead.
+ * Like <code>AsyncLayoutInflater</code>, it ignores the factories set on the Activity's
+ * inflater, e.g. by AppCompat, which are neither meant to run off the main thread nor
+ * needed by the message layouts.
+ *
+ * @see AppMsg#setAsyncInflation(boolean)
+ */
+final class MsgInflater {
+
+    /**
+     * Whether {@link AppMsg}s made from a layout are inflated in the background.
+     */
+    static volatile boolean sEnabled;
+
+    private static ExecutorService sExecutor;
+    private static Handler sMainHandler;
+
+    private MsgInflater() {
+    }
+
+    /**
+     * Inflates the view of given {@link AppMsg} in the background, then binds and shows it on
+     * the main thread.
+     */
+    static synchronized void inflateAndShow(final AppMsg appMsg, Activity activity) {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "AppMsgInflater");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        final Context context = activity;
+        final int layoutId = appMsg.mLayoutId;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                View view;
+                final boolean traced = MsgTrace.beginSection(MsgTrace.SECTION_INFLATE);
+                try {
+                    // Not the Activity's inflater, whose factories would run on this thread
+                    final LayoutInflater inflater = new BasicInflater(context);
+                    // Bound on the main thread, where the AppMsg and view tags are updated
+                    view = inflater.inflate(layoutId, null, false);
+                } catch (RuntimeException e) {
+                    view = null; // e.g. a view that needs a Looper, inflated when displayed
+                } finally {
+                    if (traced) {
+                        MsgTrace.endSection();
+                    }
+                }
+                final View prepared = view;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        appMsg.onPrepared(prepared);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Inflater without factories, resolving framework views as {@link LayoutInflater}'s
+     * default implementation for Activities does.
+     */
+    private static class BasicInflater extends LayoutInflater {
+        private static final String[] CLASS_PREFIXES = {
+                "android.widget.", "android.webkit.", "android.app."
+        };
+
+        BasicInflater(Context context) {
+            super(context);
+        }
+
+        @Override
+        public LayoutInflater cloneInContext(Context newContext) {
+            return new BasicInflater(newContext);
+        }
+
+        @Override
+        protected View onCreateView(String name, AttributeSet attrs)
+                throws ClassNotFoundException {
+            for (String prefix : CLASS_PREFIXES) {
+                try {
+                    final View view = createView(name, prefix, attrs);
+                    if (view != null) {
+                        return view;
+                    }
+                } catch (ClassNotFoundException e) {
+                    // Try the next prefix
+                }
+            }
+            return super.onCreateView(name, attrs);
+        }
+    }
+}
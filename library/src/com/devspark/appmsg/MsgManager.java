@@ -19,47 +19,238 @@ package com.devspark.appmsg;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 
+import java.io.PrintWriter;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 import static android.app.Application.ActivityLifecycleCallbacks;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
 import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.HONEYCOMB_MR1;
 import static android.os.Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+import static com.devspark.appmsg.AppMsg.ANIMATIONS_OFF;
+import static com.devspark.appmsg.AppMsg.ANIMATIONS_SHORT;
 import static com.devspark.appmsg.AppMsg.LENGTH_STICKY;
 
 /**
  * @author Evgeny Shishkin
  */
-class MsgManager extends Handler implements Comparator<AppMsg> {
+class MsgManager extends Handler {
 
     private static final int MESSAGE_DISPLAY = 0xc2007;
-    private static final int MESSAGE_ADD_VIEW = 0xc20074dd;
+    static final int MESSAGE_ADD_VIEW = 0xc20074dd;
     private static final int MESSAGE_REMOVE = 0xc2007de1;
 
     private static WeakHashMap<Activity, MsgManager> sManagers;
     private static ReleaseCallbacks sReleaseCallbacks;
 
+    /**
+     * Milliseconds a queued {@link AppMsg} waits to gain one priority level, 0 if aging is disabled.
+     *
+     * @see AppMsg#setPriorityAging(long)
+     */
+    static long sAgingInterval;
+
+    static AppMsg.OnTrimMemoryListener sTrimListener;
+
+    /**
+     * Whether new {@link AppMsg}s reference their Activity weakly.
+     *
+     * @see AppMsg#setWeakReferences(boolean)
+     */
+    static boolean sWeakReferences;
+
+    /**
+     * Whether {@link AppMsg}s with a custom parent are queued separately per parent.
+     *
+     * @see AppMsg#setQueuePerParent(boolean)
+     */
+    static boolean sQueuePerParent;
+
+    /**
+     * Maximum number of sticky {@link AppMsg}s displayed at once, 0 if unlimited.
+     *
+     * @see AppMsg#setMaxStickyCount(int)
+     */
+    static int sMaxStickyCount;
+
+    /**
+     * Whether new managers queue {@link AppMsg}s in priority lanes instead of a heap.
+     *
+     * @see AppMsg#setPriorityLanes(boolean)
+     */
+    static boolean sPriorityLanes;
+
+    /**
+     * Priority above which {@link AppMsg}s interrupt displayed ones, {@link AppMsg#PRIORITY_HIGH}
+     * if they never do.
+     *
+     * @see AppMsg#setPreemption(int, boolean)
+     */
+    static int sPreemptionThreshold = AppMsg.PRIORITY_HIGH;
+
+    /** Whether interrupted {@link AppMsg}s are queued again with the time they had left. */
+    static boolean sRequeuePreempted;
+
+    /**
+     * Priority below which {@link AppMsg}s wait for the main thread to be idle,
+     * {@link AppMsg#PRIORITY_LOW} if none do.
+     *
+     * @see AppMsg#setIdleDispatch(int, AppMsg.BusySignal)
+     */
+    static int sIdleThreshold = AppMsg.PRIORITY_LOW;
+
+    static AppMsg.BusySignal sBusySignal;
+
+    /** Display order of queued {@link AppMsg}s. */
+    static final MsgOrder<AppMsg> ORDER = new MsgOrder<AppMsg>() {
+        @Override
+        int priority(AppMsg appMsg) {
+            return appMsg.mPriority;
+        }
+
+        @Override
+        long agingKey(AppMsg appMsg) {
+            return appMsg.mAgingKey;
+        }
+
+        @Override
+        long sequence(AppMsg appMsg) {
+            return appMsg.mSequence;
+        }
+    };
+
+    /** When {@link AppMsg}s get displayed, shared with {@link QueueSimulator}. */
+    static final DispatchPolicy<AppMsg> POLICY = new DispatchPolicy<AppMsg>() {
+        @Override
+        int priority(AppMsg appMsg) {
+            return appMsg.mPriority;
+        }
+
+        @Override
+        boolean isShowing(AppMsg appMsg) {
+            return appMsg.isShowing();
+        }
+
+        @Override
+        boolean isSticky(AppMsg appMsg) {
+            return appMsg.getDuration() == LENGTH_STICKY;
+        }
+
+        @Override
+        boolean isTimed(AppMsg appMsg) {
+            return appMsg.mRemoveAt > 0;
+        }
+
+        @Override
+        int preemptionThreshold() {
+            return sPreemptionThreshold;
+        }
+
+        @Override
+        int idleThreshold() {
+            return sIdleThreshold;
+        }
+
+        @Override
+        boolean allowsConcurrent() {
+            return JankMonitor.allowsConcurrent();
+        }
+    };
+
+    /** Last {@link AppMsg#mSequence} given. */
+    private static long sSequence;
+
+    private static final ReferenceQueue<Activity> sOrphans = new ReferenceQueue<Activity>();
+
+    // Nominal weights reported for released objects when trimming memory, not measured sizes
+    private static final int VIEW_WEIGHT = 512;
+    private static final int ANIMATION_WEIGHT = 128;
+
+    /** Maximum number of views kept for reuse per layout. */
+    private static final int VIEW_POOL_SIZE = 4;
+
+    /** Duration of default animations in {@link AppMsg#ANIMATIONS_SHORT} mode. */
+    static final long SHORT_ANIMATION_DURATION = 150;
+
     private final Queue<AppMsg> msgQueue;
-    private final Queue<AppMsg> stickyQueue;
+    /** Displayed sticky {@link AppMsg}s, oldest first. */
+    private final LinkedHashSet<AppMsg> stickyQueue;
+    /** Queued {@link AppMsg}s by id, pending {@link Message}s only carry the id. */
+    private final SparseArray<AppMsg> mMessages = new SparseArray<AppMsg>();
+    private final ActivityRef mActivityRef;
+    /** Managers of parents with their own queue, only set on the Activity's manager. */
+    private WeakHashMap<ViewGroup, MsgManager> mScopes;
+    /** Whether the Activity is stopped, timers are frozen and nothing gets displayed. */
+    private boolean mPaused;
+    /** The Activity's manager, this one unless it manages the queue of a parent. */
+    private final MsgManager mRoot;
+    /** Views of dismissed {@link AppMsg}s by layout, only set on the Activity's manager. */
+    private SparseArray<ArrayList<View>> mViewPool;
+    /** Queued {@link AppMsg}s with a tag, by tag. */
+    private HashMap<Object, Set<AppMsg>> mTags;
+    /**
+     * The queue of this handler's Looper, read on its thread since Looper#getQueue() needs
+     * API 23. Clearing may happen on any thread.
+     */
+    private final MessageQueue mLooperQueue;
+    /** Whether an {@link #mIdleHandler} is registered, and whether it's running. */
+    private boolean mWaitingForIdle, mIdle;
 
-    private MsgManager() {
-        msgQueue = new PriorityQueue<AppMsg>(1, this);
-        stickyQueue = new LinkedList<AppMsg>();
+    /**
+     * Displays the next {@link AppMsg} once the main thread is idle, if it has to wait for it.
+     */
+    private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (sBusySignal != null && sBusySignal.isBusy()) {
+                // Wake up to check again, once: the looper goes idle many times meanwhile
+                if (!hasMessages(MESSAGE_DISPLAY)) {
+                    sendEmptyMessageDelayed(MESSAGE_DISPLAY, DispatchPolicy.BUSY_RECHECK_DELAY);
+                }
+                return true; // Keep waiting
+            }
+            mWaitingForIdle = false;
+            mIdle = true;
+            displayMsg();
+            mIdle = false;
+            return false;
+        }
+    };
+
+    private MsgManager(Activity activity, MsgManager root) {
+        msgQueue = sPriorityLanes
+                ? new LaneQueue<AppMsg>(ORDER) : new PriorityQueue<AppMsg>(1, ORDER);
+        stickyQueue = new LinkedHashSet<AppMsg>();
+        mActivityRef = new ActivityRef(activity, this);
+        mRoot = root != null ? root : this;
+        mLooperQueue = Looper.myQueue(); // The Looper this handler was bound to
     }
 
     /**
@@ -69,9 +260,10 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
         if (sManagers == null) {
             sManagers = new WeakHashMap<Activity, MsgManager>(1);
         }
+        purgeOrphans();
         MsgManager manager = sManagers.get(activity);
         if (manager == null) {
-            manager = new MsgManager();
+            manager = new MsgManager(activity, null);
             ensureReleaseOnDestroy(activity);
             sManagers.put(activity, manager);
         }
@@ -79,6 +271,367 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
         return manager;
     }
 
+    /**
+     * @return A {@link MsgManager} instance to be used for {@link AppMsg}s added to
+     * given parent, which is the one of the Activity unless parents have their own queue.
+     */
+    static synchronized MsgManager obtain(Activity activity, ViewGroup parent) {
+        final MsgManager manager = obtain(activity);
+        if (parent == null || !sQueuePerParent) {
+            return manager;
+        }
+        if (manager.mScopes == null) {
+            manager.mScopes = new WeakHashMap<ViewGroup, MsgManager>(1);
+        }
+        MsgManager scope = manager.mScopes.get(parent);
+        if (scope == null) {
+            scope = new MsgManager(activity, manager);
+            if (SDK_INT >= HONEYCOMB_MR1) {
+                parent.addOnAttachStateChangeListener(new ScopeReleaser(manager));
+            }
+            manager.mScopes.put(parent, scope);
+        }
+        return scope;
+    }
+
+    /**
+     * Releases the queue of given parent, {@link AppMsg}s added to it are cancelled.
+     */
+    static synchronized void release(Activity activity, ViewGroup parent) {
+        final MsgManager manager = sManagers != null ? sManagers.get(activity) : null;
+        if (manager != null) {
+            manager.releaseScope(parent);
+        }
+    }
+
+    /**
+     * Freezes the remaining durations of displayed {@link AppMsg}s and stops displaying new
+     * ones until {@link #resume(android.app.Activity)}, so nothing is wasted on a stopped Activity.
+     */
+    static synchronized void pause(Activity activity) {
+        FlightRecorder.record(FlightRecorder.EVENT_PAUSE, System.identityHashCode(activity));
+        final MsgManager manager = sManagers != null ? sManagers.get(activity) : null;
+        if (manager != null) {
+            manager.pauseMsgs();
+            if (manager.mScopes != null) {
+                for (MsgManager scope : manager.mScopes.values()) {
+                    scope.pauseMsgs();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves all {@link AppMsg}s of an Activity, along with the ones of its parents, to the
+     * managers of another Activity.
+     *
+     * @see AppMsg#handOff(android.app.Activity, android.app.Activity)
+     */
+    static synchronized void handOff(Activity from, Activity to) {
+        if (sManagers == null || from == to) {
+            return;
+        }
+        final MsgManager source = sManagers.remove(from);
+        if (source == null) {
+            return;
+        }
+        final List<AppMsg> messages = new ArrayList<AppMsg>();
+        source.detachAll(messages);
+        if (source.mScopes != null) {
+            for (MsgManager scope : source.mScopes.values()) {
+                scope.detachAll(messages);
+            }
+            source.mScopes.clear();
+        }
+        // Each one to the queue of its parent in the new Activity, in dispatch order
+        final Set<MsgManager> targets = new LinkedHashSet<MsgManager>();
+        for (AppMsg appMsg : messages) {
+            if (!appMsg.isFloating()) { // Part of the previous Activity's layout
+                final View view = appMsg.peekView();
+                if (view != null) {
+                    view.clearAnimation();
+                    view.setVisibility(View.GONE);
+                }
+                appMsg.mRemaining = 0;
+                MsgTrace.endMessage(appMsg);
+                if (appMsg.mRemovalListener != null) {
+                    appMsg.mRemovalListener.onRemoved(appMsg);
+                }
+                continue;
+            }
+            final MsgManager target = appMsg.moveTo(to);
+            target.adopt(appMsg);
+            targets.add(target);
+        }
+        for (MsgManager target : targets) {
+            target.traceDepth();
+            target.displayMsg();
+        }
+    }
+
+    /**
+     * Takes all {@link AppMsg}s out of this manager in dispatch order, displayed sticky ones
+     * first, freezing the remaining durations of displayed ones.
+     */
+    private void detachAll(List<AppMsg> messages) {
+        removeMessages(MESSAGE_DISPLAY);
+        removeMessages(MESSAGE_ADD_VIEW);
+        removeMessages(MESSAGE_REMOVE);
+        final long now = SystemClock.uptimeMillis();
+        final int first = messages.size();
+        messages.addAll(stickyQueue);
+        for (AppMsg appMsg = msgQueue.poll(); appMsg != null; appMsg = msgQueue.poll()) {
+            messages.add(appMsg);
+        }
+        for (int i = first; i < messages.size(); i++) {
+            final AppMsg appMsg = messages.get(i);
+            if (appMsg.mRemoveAt > 0) {
+                appMsg.mRemaining = DispatchPolicy.remaining(appMsg.mRemoveAt, now);
+                appMsg.mRemoveAt = 0;
+            }
+            appMsg.mHandedOff = appMsg.isShowing();
+            appMsg.mIndexedTag = null;
+        }
+        stickyQueue.clear();
+        mMessages.clear();
+        mTags = null;
+        traceDepth();
+    }
+
+    /**
+     * Queues an {@link AppMsg} taken from another manager, displaying it again at once if
+     * it was displayed. It keeps its aging key and sequence, so its place in the queue.
+     */
+    private void adopt(AppMsg appMsg) {
+        msgQueue.add(appMsg);
+        mMessages.put(appMsg.mId, appMsg);
+        index(appMsg);
+        if (appMsg.mHandedOff && !mPaused) {
+            sendMessage(obtainMessage(MESSAGE_ADD_VIEW, appMsg.mToken));
+        }
+    }
+
+    /**
+     * Cancels the {@link AppMsg}s with given tag of an Activity, along with the ones of its
+     * parents.
+     */
+    static synchronized void clearTag(Activity activity, Object tag) {
+        final MsgManager manager = sManagers != null ? sManagers.get(activity) : null;
+        if (manager != null) {
+            manager.clearTag(tag);
+        }
+    }
+
+    static synchronized void clearTagAll(Object tag) {
+        if (sManagers != null) {
+            for (MsgManager manager : sManagers.values()) {
+                manager.clearTag(tag);
+            }
+        }
+    }
+
+    /**
+     * Cancels a group of {@link AppMsg}s, going once through each queue and updating the
+     * display once.
+     */
+    private void clearTag(Object tag) {
+        if (mScopes != null) {
+            for (MsgManager scope : mScopes.values()) {
+                scope.clearTag(tag);
+            }
+        }
+        final Set<AppMsg> group = mTags != null ? mTags.remove(tag) : null;
+        if (group == null) {
+            return;
+        }
+        msgQueue.removeAll(group);
+        stickyQueue.removeAll(group);
+        for (AppMsg appMsg : group) {
+            removeMessages(MESSAGE_ADD_VIEW, appMsg.mToken);
+            removeMessages(MESSAGE_REMOVE, appMsg.mToken);
+            mMessages.remove(appMsg.mId);
+            appMsg.mIndexedTag = null;
+            appMsg.mRemoveAt = 0;
+            appMsg.mRemaining = 0;
+            FlightRecorder.record(FlightRecorder.EVENT_CLEAR, appMsg.mId);
+            MsgTrace.endMessage(appMsg);
+            removeMsg(appMsg);
+        }
+        traceDepth();
+        scheduleDisplay();
+        for (AppMsg appMsg : group) {
+            if (appMsg.mRemovalListener != null) {
+                appMsg.mRemovalListener.onRemoved(appMsg);
+            }
+        }
+    }
+
+    private void index(AppMsg appMsg) {
+        final Object tag = appMsg.getTag();
+        if (tag == null) {
+            return;
+        }
+        if (mTags == null) {
+            mTags = new HashMap<Object, Set<AppMsg>>();
+        }
+        Set<AppMsg> group = mTags.get(tag);
+        if (group == null) {
+            group = new LinkedHashSet<AppMsg>();
+            mTags.put(tag, group);
+        }
+        group.add(appMsg);
+        appMsg.mIndexedTag = tag;
+    }
+
+    private void unindex(AppMsg appMsg) {
+        final Object tag = appMsg.mIndexedTag;
+        if (tag == null || mTags == null) {
+            return;
+        }
+        final Set<AppMsg> group = mTags.get(tag);
+        if (group != null && group.remove(appMsg) && group.isEmpty()) {
+            mTags.remove(tag);
+        }
+        appMsg.mIndexedTag = null;
+    }
+
+    /**
+     * @return Snapshots of the {@link AppMsg}s of an Activity, then of each of its parents:
+     * displayed sticky messages, then queued ones in the order they get displayed.
+     */
+    static synchronized List<MsgSnapshot> snapshot(Activity activity) {
+        final MsgManager manager = sManagers != null ? sManagers.get(activity) : null;
+        if (manager == null) {
+            return Collections.emptyList();
+        }
+        final long now = SystemClock.uptimeMillis();
+        final List<MsgSnapshot> snapshots = new ArrayList<MsgSnapshot>(manager.mMessages.size());
+        manager.snapshot(snapshots, now);
+        if (manager.mScopes != null) {
+            for (MsgManager scope : manager.mScopes.values()) {
+                scope.snapshot(snapshots, now);
+            }
+        }
+        return Collections.unmodifiableList(snapshots);
+    }
+
+    private void snapshot(List<MsgSnapshot> snapshots, long now) {
+        for (AppMsg appMsg : stickyQueue) {
+            snapshots.add(new MsgSnapshot(appMsg, MsgSnapshot.STATE_STICKY, now));
+        }
+        // In dispatch order, a lane being FIFO whatever the priorities
+        if (msgQueue instanceof LaneQueue) {
+            final Iterator<AppMsg> queued = ((LaneQueue<AppMsg>) msgQueue).orderedIterator();
+            while (queued.hasNext()) {
+                snapshotQueued(snapshots, queued.next(), now);
+            }
+        } else {
+            // ORDER is total, so sorting gives the order in which they'd be polled
+            final AppMsg[] queued = msgQueue.toArray(new AppMsg[msgQueue.size()]);
+            Arrays.sort(queued, ORDER);
+            for (AppMsg appMsg : queued) {
+                snapshotQueued(snapshots, appMsg, now);
+            }
+        }
+    }
+
+    private static void snapshotQueued(List<MsgSnapshot> snapshots, AppMsg appMsg, long now) {
+        snapshots.add(new MsgSnapshot(appMsg, appMsg.isShowing()
+                ? MsgSnapshot.STATE_DISPLAYED : MsgSnapshot.STATE_QUEUED, now));
+    }
+
+    static synchronized void dump(Activity activity, String prefix, PrintWriter writer) {
+        final MsgManager manager = sManagers != null ? sManagers.get(activity) : null;
+        final List<MsgSnapshot> snapshots = snapshot(activity);
+        writer.print(prefix);
+        writer.print("AppMsg: ");
+        writer.print(snapshots.size());
+        writer.print(" messages");
+        if (manager != null && manager.mPaused) {
+            writer.print(", paused");
+        }
+        if (JankMonitor.sMode != AppMsg.ANIMATIONS_FULL) {
+            writer.print(", animation mode ");
+            writer.print(JankMonitor.sMode);
+        }
+        writer.println();
+        for (MsgSnapshot snapshot : snapshots) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(snapshot);
+        }
+        writer.flush();
+    }
+
+    static synchronized void resume(Activity activity) {
+        FlightRecorder.record(FlightRecorder.EVENT_RESUME, System.identityHashCode(activity));
+        final MsgManager manager = sManagers != null ? sManagers.get(activity) : null;
+        if (manager != null) {
+            manager.resumeMsgs();
+            if (manager.mScopes != null) {
+                for (MsgManager scope : manager.mScopes.values()) {
+                    scope.resumeMsgs();
+                }
+            }
+        }
+    }
+
+    private void pauseMsgs() {
+        if (mPaused) {
+            return;
+        }
+        mPaused = true;
+        removeMessages(MESSAGE_DISPLAY);
+        removeMessages(MESSAGE_ADD_VIEW);
+        final long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < mMessages.size(); i++) {
+            final AppMsg appMsg = mMessages.valueAt(i);
+            if (appMsg.mRemoveAt > 0) {
+                removeMessages(MESSAGE_REMOVE, appMsg.mToken);
+                appMsg.mRemaining = DispatchPolicy.remaining(appMsg.mRemoveAt, now);
+                appMsg.mRemoveAt = 0;
+            }
+        }
+    }
+
+    private void resumeMsgs() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        for (int i = 0; i < mMessages.size(); i++) {
+            final AppMsg appMsg = mMessages.valueAt(i);
+            if (appMsg.mRemaining > 0 && appMsg.isShowing()) {
+                scheduleRemove(appMsg, appMsg.mRemaining);
+                appMsg.mRemaining = 0;
+            }
+        }
+        displayMsg();
+    }
+
+    private void releaseScope(ViewGroup parent) {
+        final MsgManager scope = mScopes != null ? mScopes.remove(parent) : null;
+        if (scope != null) {
+            scope.clearAllMsg();
+        }
+    }
+
+    /**
+     * @return The managers of all Activities, along with the ones of their parents.
+     */
+    private static List<MsgManager> allManagers() {
+        final List<MsgManager> managers = new ArrayList<MsgManager>();
+        if (sManagers != null) {
+            for (MsgManager manager : sManagers.values()) {
+                managers.add(manager);
+                if (manager.mScopes != null) {
+                    managers.addAll(manager.mScopes.values());
+                }
+            }
+        }
+        return managers;
+    }
+
     static void ensureReleaseOnDestroy(Activity activity) {
         if (SDK_INT < ICE_CREAM_SANDWICH) {
             return;
@@ -90,7 +643,19 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
     }
 
 
+    /**
+     * Drops whatever is left in managers whose Activity has been garbage collected
+     * without being released. Each one is found without scanning the other managers.
+     */
+    static void purgeOrphans() {
+        ActivityRef ref;
+        while ((ref = (ActivityRef) sOrphans.poll()) != null) {
+            ref.manager.clearAllMsg();
+        }
+    }
+
     static synchronized void release(Activity activity) {
+        FlightRecorder.record(FlightRecorder.EVENT_RELEASE, System.identityHashCode(activity));
         if (sManagers != null) {
             final MsgManager manager = sManagers.remove(activity);
             if (manager != null) {
@@ -99,6 +664,51 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
         }
     }
 
+    /**
+     * Cancels all {@link AppMsg}s of given Activity, keeping its manager and the views
+     * it may reuse if not animated.
+     */
+    static synchronized void release(Activity activity, boolean animate) {
+        if (animate) {
+            release(activity);
+        } else if (sManagers != null) {
+            // Not a release, the manager stays: clearAllMsg records EVENT_CLEAR_ALL
+            final MsgManager manager = sManagers.get(activity);
+            if (manager != null) {
+                manager.clearAllMsg(false);
+            }
+        }
+    }
+
+    /**
+     * @return A view inflated from given layout that a dismissed {@link AppMsg} left
+     * for reuse, or <code>null</code>.
+     */
+    static synchronized View obtainRecycledView(Activity activity, int layoutId) {
+        final MsgManager manager = sManagers != null ? sManagers.get(activity) : null;
+        if (manager == null || manager.mViewPool == null) {
+            return null;
+        }
+        final ArrayList<View> views = manager.mViewPool.get(layoutId);
+        return views != null && !views.isEmpty() ? views.remove(views.size() - 1) : null;
+    }
+
+    private void recycleView(int layoutId, View view) {
+        synchronized (MsgManager.class) {
+            if (mRoot.mViewPool == null) {
+                mRoot.mViewPool = new SparseArray<ArrayList<View>>();
+            }
+            ArrayList<View> views = mRoot.mViewPool.get(layoutId);
+            if (views == null) {
+                views = new ArrayList<View>(VIEW_POOL_SIZE);
+                mRoot.mViewPool.put(layoutId, views);
+            }
+            if (views.size() < VIEW_POOL_SIZE) {
+                views.add(view);
+            }
+        }
+    }
+
     static synchronized void clearAll() {
         if (sManagers != null) {
             final Iterator<MsgManager> iterator = sManagers.values().iterator();
@@ -113,13 +723,150 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
         }
     }
 
+    static synchronized long trimAll(int level) {
+        if (level < TRIM_MEMORY_RUNNING_LOW) {
+            return 0;
+        }
+        AppMsg.TextSource.clearCache();
+        int views = 0;
+        long weight = 0;
+        for (MsgManager manager : allManagers()) {
+            if (manager.mViewPool != null) {
+                for (int i = 0; i < manager.mViewPool.size(); i++) {
+                    for (View view : manager.mViewPool.valueAt(i)) {
+                        views++;
+                        weight += weigh(view);
+                    }
+                }
+                manager.mViewPool = null;
+            }
+            for (AppMsg msg : manager.msgQueue) {
+                final View view = msg.releaseView();
+                if (view != null) {
+                    views++;
+                    weight += weigh(view);
+                }
+                if (msg.mDefaultAnimations && !msg.isShowing()) {
+                    msg.mInAnimation = null;
+                    msg.mOutAnimation = null;
+                    msg.mDefaultAnimations = false;
+                    weight += 2 * ANIMATION_WEIGHT;
+                }
+            }
+        }
+        if (sTrimListener != null) {
+            sTrimListener.onTrimMemory(level, views, weight);
+        }
+        return weight;
+    }
+
+    /**
+     * Sets the priority aging interval, and recomputes the aging keys of queued
+     * {@link AppMsg}s so that they compare with the ones queued afterwards.
+     */
+    static synchronized void setAgingInterval(long interval) {
+        if (interval == sAgingInterval) {
+            return;
+        }
+        sAgingInterval = interval;
+        for (MsgManager manager : allManagers()) {
+            manager.reorder();
+        }
+    }
+
+    private void reorder() {
+        if (msgQueue.isEmpty()) {
+            return;
+        }
+        // Polled and added back in order, so that lanes keep their order
+        final List<AppMsg> queued = new ArrayList<AppMsg>(msgQueue.size());
+        for (AppMsg appMsg = msgQueue.poll(); appMsg != null; appMsg = msgQueue.poll()) {
+            appMsg.mAgingKey = MsgOrder.agingKey(appMsg.mPriority, appMsg.mQueuedAt,
+                    sAgingInterval);
+            queued.add(appMsg);
+        }
+        msgQueue.addAll(queued);
+        scheduleDisplay();
+    }
+
+    static long weigh(View view) {
+        long weight = VIEW_WEIGHT;
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                weight += weigh(group.getChildAt(i));
+            }
+        }
+        return weight;
+    }
+
     /**
      * Inserts a {@link AppMsg} to be displayed.
      *
      * @param appMsg
      */
     void add(AppMsg appMsg) {
+        appMsg.mQueuedAt = SystemClock.uptimeMillis();
+        appMsg.mAgingKey = MsgOrder.agingKey(appMsg.mPriority, appMsg.mQueuedAt, sAgingInterval);
+        appMsg.mSequence = ++sSequence;
         msgQueue.add(appMsg);
+        mMessages.put(appMsg.mId, appMsg);
+        index(appMsg);
+        FlightRecorder.record(FlightRecorder.EVENT_ADD, appMsg.mId);
+        MsgTrace.beginMessage(appMsg);
+        JankMonitor.watch();
+        if (POLICY.preempts(appMsg, mPaused)) {
+            preemptFor(appMsg);
+        }
+        traceDepth();
+        ensureAnimations(appMsg);
+        if (sWeakReferences && msgQueue.peek() != appMsg) {
+            // It has to wait, don't let its view hold on to the Activity meanwhile
+            appMsg.releaseView();
+        }
+        displayMsg();
+    }
+
+    /**
+     * Dismisses displayed {@link AppMsg}s that aren't urgent to make room for an urgent one,
+     * queuing them again if {@link #sRequeuePreempted}.
+     */
+    private void preemptFor(AppMsg urgent) {
+        List<AppMsg> preempted = null;
+        for (AppMsg appMsg : msgQueue) {
+            if (POLICY.isPreemptedBy(appMsg, urgent)) {
+                if (preempted == null) {
+                    preempted = new ArrayList<AppMsg>(1);
+                }
+                preempted.add(appMsg);
+            }
+        }
+        if (preempted == null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        for (AppMsg appMsg : preempted) {
+            if (!sRequeuePreempted) {
+                clearMsg(appMsg);
+                continue;
+            }
+            removeMessages(MESSAGE_REMOVE, appMsg.mToken);
+            msgQueue.remove(appMsg);
+            removeMsg(appMsg);
+            appMsg.mRemaining = DispatchPolicy.remaining(appMsg.mRemoveAt, now);
+            appMsg.mRemoveAt = 0;
+            // Behind the urgent one, which now has the same or an older aging key
+            appMsg.mQueuedAt = now;
+            appMsg.mAgingKey = MsgOrder.agingKey(appMsg.mPriority, now, sAgingInterval);
+            appMsg.mSequence = ++sSequence;
+            msgQueue.add(appMsg);
+        }
+    }
+
+    static void ensureAnimations(AppMsg appMsg) {
+        if (appMsg.mInAnimation == null && appMsg.mOutAnimation == null) {
+            appMsg.mDefaultAnimations = true;
+        }
         if (appMsg.mInAnimation == null) {
             appMsg.mInAnimation = AnimationUtils.loadAnimation(appMsg.getActivity(),
                     android.R.anim.fade_in);
@@ -128,21 +875,53 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
             appMsg.mOutAnimation = AnimationUtils.loadAnimation(appMsg.getActivity(),
                     android.R.anim.fade_out);
         }
-        displayMsg();
     }
 
     /**
      * Removes all {@link AppMsg} from the queue.
+     *
+     * @return <code>false</code> if it wasn't queued.
      */
-    void clearMsg(AppMsg appMsg) {
-        if(msgQueue.contains(appMsg) || stickyQueue.contains(appMsg)){
+    boolean clearMsg(AppMsg appMsg) {
+        if (mMessages.get(appMsg.mId) == appMsg) {
             // Avoid the message from being removed twice.
-            removeMessages(MESSAGE_DISPLAY, appMsg);
-            removeMessages(MESSAGE_ADD_VIEW, appMsg);
-            removeMessages(MESSAGE_REMOVE, appMsg);
-            msgQueue.remove(appMsg);
-            stickyQueue.remove(appMsg);
+            removeMessages(MESSAGE_ADD_VIEW, appMsg.mToken);
+            removeMessages(MESSAGE_REMOVE, appMsg.mToken);
+            // A displayed sticky one isn't in the queue, skip scanning it
+            if (!stickyQueue.remove(appMsg)) {
+                msgQueue.remove(appMsg);
+            }
+            mMessages.remove(appMsg.mId);
+            unindex(appMsg);
+            FlightRecorder.record(FlightRecorder.EVENT_CLEAR, appMsg.mId);
+            MsgTrace.endMessage(appMsg);
+            traceDepth();
+            appMsg.mRemoveAt = 0;
+            appMsg.mRemaining = 0;
             removeMsg(appMsg);
+            scheduleDisplay();
+            if (appMsg.mRemovalListener != null) {
+                appMsg.mRemovalListener.onRemoved(appMsg);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Restarts the duration of a displayed {@link AppMsg}.
+     *
+     * @see AppMsg.Updater#resetDuration()
+     */
+    void resetTimer(AppMsg appMsg) {
+        if (mMessages.get(appMsg.mId) != appMsg) {
+            return;
+        }
+        if (appMsg.mRemoveAt > 0) {
+            removeMessages(MESSAGE_REMOVE, appMsg.mToken);
+            scheduleRemove(appMsg, appMsg.getDuration());
+        } else if (appMsg.mRemaining > 0) { // Paused, or waiting after being interrupted
+            appMsg.mRemaining = appMsg.getDuration();
         }
     }
 
@@ -150,28 +929,98 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
      * Removes all {@link AppMsg} from the queue.
      */
     void clearAllMsg() {
+        clearAllMsg(true);
+    }
+
+    /**
+     * Removes all {@link AppMsg} from the queue.
+     *
+     * @param animate <code>false</code> to remove displayed views at once,
+     *                see {@link #detachShowing()}.
+     */
+    void clearAllMsg(boolean animate) {
+        FlightRecorder.record(FlightRecorder.EVENT_CLEAR_ALL, mMessages.size());
+        stopWaitingForIdle();
         removeMessages(MESSAGE_DISPLAY);
         removeMessages(MESSAGE_ADD_VIEW);
         removeMessages(MESSAGE_REMOVE);
-        clearShowing();
+        if (animate) {
+            clearShowing();
+        } else {
+            detachShowing();
+        }
+        for (int i = 0; i < mMessages.size(); i++) {
+            final AppMsg appMsg = mMessages.valueAt(i);
+            appMsg.mIndexedTag = null;
+            MsgTrace.endMessage(appMsg);
+            if (appMsg.mRemovalListener != null) {
+                appMsg.mRemovalListener.onRemoved(appMsg);
+            }
+        }
         msgQueue.clear();
         stickyQueue.clear();
+        mMessages.clear();
+        mTags = null;
+        traceDepth();
+        if (mScopes != null) {
+            for (MsgManager scope : mScopes.values()) {
+                scope.clearAllMsg(animate);
+            }
+            mScopes.clear();
+        }
     }
 
-    void clearShowing() {
-        final Collection<AppMsg> showing = new HashSet<AppMsg>();
-        obtainShowing(msgQueue, showing);
-        obtainShowing(stickyQueue, showing);
-        for (AppMsg msg : showing) {
-            clearMsg(msg);
+    /**
+     * Removes the views of all displayed {@link AppMsg}s without out animations. Views are
+     * removed in layout, so their parents are laid out once for all of them, and kept to be
+     * reused when possible.
+     */
+    void detachShowing() {
+        final List<ViewGroup> parents = new ArrayList<ViewGroup>(1);
+        for (AppMsg msg : msgQueue) {
+            detachMsg(msg, parents);
+        }
+        for (AppMsg msg : stickyQueue) {
+            detachMsg(msg, parents);
+        }
+        for (ViewGroup parent : parents) {
+            parent.requestLayout();
+            parent.invalidate();
         }
     }
 
-    static void obtainShowing(Collection<AppMsg> from, Collection<AppMsg> appendTo) {
-        for (AppMsg msg : from) {
-            if (msg.isShowing()) {
-                appendTo.add(msg);
+    /**
+     * @param parents Collects the parents the view is removed from, to be laid out.
+     */
+    private void detachMsg(AppMsg appMsg, List<ViewGroup> parents) {
+        final View view = appMsg.peekView();
+        if (view == null || !appMsg.isShowing()) {
+            return;
+        }
+        view.clearAnimation();
+        if (appMsg.isFloating()) {
+            final ViewGroup parent = (ViewGroup) view.getParent();
+            parent.removeViewInLayout(view);
+            if (!parents.contains(parent)) {
+                parents.add(parent);
+            }
+            if (!sWeakReferences && appMsg.isRecyclable() && appMsg.releaseView() != null) {
+                recycleView(appMsg.mLayoutId, view);
             }
+        } else {
+            view.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Removes the views of all displayed {@link AppMsg}s, leaving the queues as they are.
+     */
+    void clearShowing() {
+        for (AppMsg msg : msgQueue) {
+            removeMsg(msg);
+        }
+        for (AppMsg msg : stickyQueue) {
+            removeMsg(msg);
         }
     }
 
@@ -179,84 +1028,186 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
      * Displays the next {@link AppMsg} within the queue.
      */
     private void displayMsg() {
-        if (msgQueue.isEmpty()) {
-            return;
-        }
-        // First peek whether the AppMsg is being displayed.
         final AppMsg appMsg = msgQueue.peek();
-        final Message msg;
-        if (!appMsg.isShowing()) {
-            // Display the AppMsg
-            msg = obtainMessage(MESSAGE_ADD_VIEW);
-            msg.obj = appMsg;
-            sendMessage(msg);
-        } else if (appMsg.getDuration() != LENGTH_STICKY) {
-            msg = obtainMessage(MESSAGE_DISPLAY);
-            sendMessageDelayed(msg, appMsg.getDuration()
-                    + appMsg.mInAnimation.getDuration() + appMsg.mOutAnimation.getDuration());
+        switch (POLICY.next(msgQueue, mPaused, mIdle)) {
+            case DispatchPolicy.DISPATCH_IDLE:
+                waitForIdle();
+                break;
+            case DispatchPolicy.DISPATCH_ADD_VIEW:
+                // Display the AppMsg, unless it's already on its way
+                if (!hasMessages(MESSAGE_ADD_VIEW, appMsg.mToken)) {
+                    sendMessage(obtainMessage(MESSAGE_ADD_VIEW, appMsg.mToken));
+                }
+                break;
+            case DispatchPolicy.DISPATCH_NEXT:
+                removeMessages(MESSAGE_DISPLAY);
+                sendEmptyMessageDelayed(MESSAGE_DISPLAY, appMsg.getDuration()
+                        + appMsg.mInAnimation.getDuration() + appMsg.mOutAnimation.getDuration());
+                break;
+        }
+    }
+
+    /**
+     * Adapts an animation to the current animation mode.
+     *
+     * @return <code>false</code> if it shouldn't run at all.
+     * @see JankMonitor
+     */
+    private static boolean prepareAnimation(AppMsg appMsg, Animation animation) {
+        switch (JankMonitor.sMode) {
+            case ANIMATIONS_OFF:
+                return false;
+            case ANIMATIONS_SHORT:
+                // Only shorten our own animations, custom ones may be shared
+                if (appMsg.mDefaultAnimations) {
+                    animation.setDuration(SHORT_ANIMATION_DURATION);
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private void waitForIdle() {
+        if (!mWaitingForIdle) {
+            mWaitingForIdle = true;
+            mLooperQueue.addIdleHandler(mIdleHandler);
+        }
+    }
+
+    private void stopWaitingForIdle() {
+        if (mWaitingForIdle) {
+            mWaitingForIdle = false;
+            mLooperQueue.removeIdleHandler(mIdleHandler);
         }
     }
 
     /**
-     * Removes the {@link AppMsg}'s view after it's display duration.
+     * Replaces any pending display of the next {@link AppMsg} by an immediate one.
+     */
+    private void scheduleDisplay() {
+        removeMessages(MESSAGE_DISPLAY);
+        sendEmptyMessage(MESSAGE_DISPLAY);
+    }
+
+    /**
+     * Removes the {@link AppMsg}'s view with its out animation, if it's displayed.
      *
-     * @param appMsg The {@link AppMsg} added to a {@link ViewGroup} and should be removed.s
-     */
-    private void removeMsg(final AppMsg appMsg) {
-        clearMsg(appMsg);
-        final View view = appMsg.getView();
-        ViewGroup parent = ((ViewGroup) view.getParent());
-        if (parent != null) {
-            appMsg.mOutAnimation.setAnimationListener(new OutAnimationListener(appMsg));
+     * @param appMsg The {@link AppMsg} added to a {@link ViewGroup} and should be removed.
+     */
+    private void removeMsg(AppMsg appMsg) {
+        final View view = appMsg.peekView();
+        if (view != null && view.getParent() != null && appMsg.isShowing()) {
+            final boolean traced = MsgTrace.beginSection(MsgTrace.SECTION_REMOVE);
+            FlightRecorder.record(FlightRecorder.EVENT_HIDE, appMsg.mId);
+            JankMonitor.watch();
             view.clearAnimation();
-            view.startAnimation(appMsg.mOutAnimation);
+            if (prepareAnimation(appMsg, appMsg.mOutAnimation)) {
+                appMsg.mOutAnimation.setAnimationListener(appMsg.mOutListener);
+                view.startAnimation(appMsg.mOutAnimation);
+            } else {
+                appMsg.mOutListener.onAnimationEnd(appMsg.mOutAnimation);
+            }
+            if (traced) {
+                MsgTrace.endSection();
+            }
         }
+    }
 
-        Message msg = obtainMessage(MESSAGE_DISPLAY);
-        sendMessage(msg);
+    private void traceDepth() {
+        MsgTrace.setDepth(msgQueue.size(), stickyQueue.size());
     }
 
     private void addMsgToView(AppMsg appMsg) {
-        View view = appMsg.getView();
+        final boolean traced = MsgTrace.beginSection(MsgTrace.SECTION_ADD_VIEW);
+        try {
+            attachMsg(appMsg);
+        } finally {
+            if (traced) {
+                MsgTrace.endSection();
+            }
+        }
+    }
+
+    private void attachMsg(AppMsg appMsg) {
+        final Activity activity = appMsg.getActivity();
+        final View view = appMsg.ensureView();
+        if (activity == null || view == null) { // Nothing left to display
+            FlightRecorder.record(FlightRecorder.EVENT_DROP, appMsg.mId);
+            clearMsg(appMsg);
+            return;
+        }
+        appMsg.resolveText();
+        ensureAnimations(appMsg);
         if (view.getParent() == null) { // Not added yet
             final ViewGroup targetParent = appMsg.getParent();
             final ViewGroup.LayoutParams params = appMsg.getLayoutParams();
             if (targetParent != null) {
                 targetParent.addView(view, params);
             } else {
-                appMsg.getActivity().addContentView(view, params);
+                activity.addContentView(view, params);
             }
         }
+        if (sWeakReferences) {
+            appMsg.holdViewWeakly();
+        }
         view.clearAnimation();
-        view.startAnimation(appMsg.mInAnimation);
+        if (!appMsg.mHandedOff && prepareAnimation(appMsg, appMsg.mInAnimation)) {
+            view.startAnimation(appMsg.mInAnimation);
+        }
+        appMsg.mHandedOff = false;
         if (view.getVisibility() != View.VISIBLE) {
             view.setVisibility(View.VISIBLE);
         }
+        FlightRecorder.record(FlightRecorder.EVENT_SHOW, appMsg.mId);
 
         final int duration = appMsg.getDuration();
         if (duration != LENGTH_STICKY) {
-            final Message msg = obtainMessage(MESSAGE_REMOVE);
-            msg.obj = appMsg;
-            sendMessageDelayed(msg, duration);
+            // What's left of it if it was displayed before being handed off
+            scheduleRemove(appMsg, appMsg.mRemaining > 0 ? appMsg.mRemaining : duration);
+            appMsg.mRemaining = 0;
         } else { // We are sticky, we don't get removed just yet
-            stickyQueue.add(msgQueue.poll());
+            if (msgQueue.peek() == appMsg) {
+                msgQueue.poll();
+            } else {
+                msgQueue.remove(appMsg);
+            }
+            stickyQueue.add(appMsg);
+            traceDepth();
+            if (sMaxStickyCount > 0 && stickyQueue.size() > sMaxStickyCount) {
+                // Make room by dismissing the one displayed the longest
+                clearMsg(stickyQueue.iterator().next());
+            }
         }
     }
 
+    private void scheduleRemove(AppMsg appMsg, long delay) {
+        appMsg.mRemoveAt = SystemClock.uptimeMillis() + delay;
+        sendMessageAtTime(obtainMessage(MESSAGE_REMOVE, appMsg.mToken), appMsg.mRemoveAt);
+    }
+
     @Override
     public void handleMessage(Message msg) {
+        if (mActivityRef.get() == null) { // Orphaned, the Activity is gone
+            clearAllMsg();
+            return;
+        }
         final AppMsg appMsg;
         switch (msg.what) {
             case MESSAGE_DISPLAY:
                 displayMsg();
                 break;
             case MESSAGE_ADD_VIEW:
-                appMsg = (AppMsg) msg.obj;
-                addMsgToView(appMsg);
+                appMsg = mMessages.get((Integer) msg.obj);
+                if (appMsg != null) {
+                    addMsgToView(appMsg);
+                }
                 break;
             case MESSAGE_REMOVE:
-                appMsg = (AppMsg) msg.obj;
-                removeMsg(appMsg);
+                appMsg = mMessages.get((Integer) msg.obj);
+                if (appMsg != null) {
+                    clearMsg(appMsg);
+                }
                 break;
             default:
                 super.handleMessage(msg);
@@ -264,20 +1215,22 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
         }
     }
 
-    @Override
-    public int compare(AppMsg lhs, AppMsg rhs) {
-        return inverseCompareInt(lhs.mPriority, rhs.mPriority);
-    }
-
-    static int inverseCompareInt(int lhs, int rhs) {
-        return lhs < rhs ? 1 : (lhs == rhs ? 0 : -1);
+    /**
+     * Notified when an {@link AppMsg} leaves its manager, whether it's been displayed or not.
+     */
+    interface RemovalListener {
+        void onRemoved(AppMsg appMsg);
     }
 
-    private static class OutAnimationListener implements Animation.AnimationListener {
+    /**
+     * Removes the view of an {@link AppMsg} once its out animation ends. Bound once to
+     * each {@link AppMsg}, it also posts itself to do the actual removal.
+     */
+    static class OutAnimationListener implements Animation.AnimationListener, Runnable {
 
         private final AppMsg appMsg;
 
-        private OutAnimationListener(AppMsg appMsg) {
+        OutAnimationListener(AppMsg appMsg) {
             this.appMsg = appMsg;
         }
 
@@ -288,34 +1241,82 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
 
         @Override
         public void onAnimationEnd(Animation animation) {
-            final View view = appMsg.getView();
+            final View view = appMsg.peekView();
+            if (view == null) {
+                return;
+            }
             if (appMsg.isFloating()) {
                 final ViewGroup parent = ((ViewGroup) view.getParent());
                 if (parent != null) {
-                    parent.post(new Runnable() { // One does not simply removeView
-                        @Override
-                        public void run() {
-                            parent.removeView(view);
-                        }
-                    });
+                    parent.post(this); // One does not simply removeView
                 }
             } else {
                 view.setVisibility(View.GONE);
             }
         }
 
+        @Override
+        public void run() {
+            final View view = appMsg.peekView();
+            final ViewGroup parent = view != null ? (ViewGroup) view.getParent() : null;
+            if (parent != null) {
+                final boolean traced = MsgTrace.beginSection(MsgTrace.SECTION_REMOVE_VIEW);
+                parent.removeView(view);
+                if (traced) {
+                    MsgTrace.endSection();
+                }
+            }
+        }
+
         @Override
         public void onAnimationRepeat(Animation animation) {
 
         }
     }
 
+    /**
+     * Weak reference to the Activity of a manager, enqueued once the Activity is garbage collected.
+     */
+    static final class ActivityRef extends WeakReference<Activity> {
+        final MsgManager manager;
+
+        ActivityRef(Activity activity, MsgManager manager) {
+            super(activity, sOrphans);
+            this.manager = manager;
+        }
+    }
+
+    /**
+     * Releases the queue of a parent once it's detached from its window.
+     */
+    @TargetApi(HONEYCOMB_MR1)
+    static class ScopeReleaser implements View.OnAttachStateChangeListener {
+        private final MsgManager mManager;
+
+        ScopeReleaser(MsgManager manager) {
+            mManager = manager;
+        }
+
+        @Override
+        public void onViewAttachedToWindow(View v) {
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            v.removeOnAttachStateChangeListener(this);
+            synchronized (MsgManager.class) {
+                mManager.releaseScope((ViewGroup) v);
+            }
+        }
+    }
+
     interface ReleaseCallbacks {
         void register(Application application);
     }
 
     @TargetApi(ICE_CREAM_SANDWICH)
-    static class ReleaseCallbacksIcs implements ActivityLifecycleCallbacks, ReleaseCallbacks {
+    static class ReleaseCallbacksIcs implements ActivityLifecycleCallbacks, ComponentCallbacks2,
+            ReleaseCallbacks {
         private WeakReference<Application> mLastApp;
         public void register(Application app) {
             if (mLastApp != null && mLastApp.get() == app) {
@@ -324,17 +1325,38 @@ class MsgManager extends Handler implements Comparator<AppMsg> {
                 mLastApp = new WeakReference<Application>(app);
             }
             app.registerActivityLifecycleCallbacks(this);
+            app.registerComponentCallbacks(this);
         }
 
+        @Override
+        public void onTrimMemory(int level) {
+            trimAll(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimAll(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override public void onConfigurationChanged(Configuration newConfig) {}
+
         @Override
         public void onActivityDestroyed(Activity activity) {
             release(activity);
         }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            resume(activity);
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            pause(activity);
+        }
         @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
-        @Override public void onActivityStarted(Activity activity) {}
         @Override public void onActivityResumed(Activity activity) {}
         @Override public void onActivityPaused(Activity activity) {}
-        @Override public void onActivityStopped(Activity activity) {}
         @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
     }
 }
\ No newline at end of file
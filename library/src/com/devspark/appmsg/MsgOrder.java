@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import java.util.Comparator;
+
+/**
+ * The order in which queued messages get displayed: highest aging key first, then
+ * highest priority, then first queued. Plain Java, so that {@link QueueSimulator} shares it with
+ * {@link MsgManager}.
+ *
+ * @param <E> Type of the queued messages.
+ */
+abstract class MsgOrder<E> implements Comparator<E> {
+
+    /** Number of levels returned by {@link #priorityLevel(int)}. */
+    static final int LEVEL_COUNT = 3;
+
+    abstract int priority(E e);
+
+    abstract long agingKey(E e);
+
+    /**
+     * @return A number increasing with each message queued, so that ties are FIFO.
+     */
+    abstract long sequence(E e);
+
+    @Override
+    public int compare(E lhs, E rhs) {
+        final long lhsKey = agingKey(lhs);
+        final long rhsKey = agingKey(rhs);
+        if (lhsKey != rhsKey) {
+            return lhsKey < rhsKey ? 1 : -1;
+        }
+        final int byPriority = inverseCompareInt(priority(lhs), priority(rhs));
+        if (byPriority != 0) {
+            return byPriority;
+        }
+        final long lhsSequence = sequence(lhs);
+        final long rhsSequence = sequence(rhs);
+        return lhsSequence < rhsSequence ? -1 : (lhsSequence == rhsSequence ? 0 : 1);
+    }
+
+    /**
+     * @return The priority level of given message.
+     * @see #priorityLevel(int)
+     */
+    int level(E e) {
+        return priorityLevel(priority(e));
+    }
+
+    /**
+     * Maps any priority to one of the three levels low (0), normal (1) and high (2).
+     */
+    static int priorityLevel(int priority) {
+        return priority < 0 ? 0 : (priority == 0 ? 1 : 2);
+    }
+
+    /**
+     * Computes the ordering key used for priority aging. The effective priority of a queued
+     * message is <code>level + (now - queuedAt) / interval</code>, so comparing two messages
+     * at any time boils down to comparing <code>level * interval - queuedAt</code>. The key
+     * never changes while the message waits and the queue doesn't need to be re-sorted.
+     *
+     * @return The key, or 0 if aging is disabled.
+     */
+    static long agingKey(int priority, long queuedAt, long interval) {
+        if (interval <= 0) {
+            return 0;
+        }
+        return priorityLevel(priority) * interval - queuedAt;
+    }
+
+    static int inverseCompareInt(int lhs, int rhs) {
+        return lhs < rhs ? 1 : (lhs == rhs ? 0 : -1);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import android.view.View;
+import android.view.ViewGroup;
+
+/**
+ * Immutable state of a queued {@link AppMsg} at the time it was taken, see
+ * {@link AppMsg#getQueueSnapshot(android.app.Activity)}. It doesn't reference the
+ * {@link AppMsg} itself.
+ */
+public final class MsgSnapshot {
+
+    /** Waiting in the queue. */
+    public static final int STATE_QUEUED = 0;
+    /** Displayed, until its duration elapses. */
+    public static final int STATE_DISPLAYED = 1;
+    /** Displayed, until cancelled. */
+    public static final int STATE_STICKY = 2;
+
+    private final int mId;
+    private final int mState;
+    private final int mPriority;
+    private final int mDuration;
+    private final long mWaitTime;
+    private final long mRemaining;
+    private final Object mTag;
+    private final String mText;
+    private final int mParentId;
+
+    MsgSnapshot(AppMsg appMsg, int state, long now) {
+        mId = appMsg.mId;
+        mState = state;
+        mPriority = appMsg.getPriority();
+        mDuration = appMsg.getDuration();
+        mWaitTime = now - appMsg.mQueuedAt;
+        if (appMsg.mRemoveAt > 0) {
+            mRemaining = Math.max(0, appMsg.mRemoveAt - now);
+        } else {
+            mRemaining = appMsg.mRemaining > 0 ? appMsg.mRemaining : -1;
+        }
+        mTag = appMsg.getTag();
+        final CharSequence text = appMsg.peekText();
+        mText = text != null ? text.toString() : null;
+        final ViewGroup parent = appMsg.getParent();
+        mParentId = parent != null ? parent.getId() : View.NO_ID;
+    }
+
+    /**
+     * @see AppMsg#getId()
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return One of {@link #STATE_QUEUED}, {@link #STATE_DISPLAYED} and {@link #STATE_STICKY}.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * @return Milliseconds since the message was shown with {@link AppMsg#show()}.
+     */
+    public long getWaitTime() {
+        return mWaitTime;
+    }
+
+    /**
+     * @return Milliseconds left before a displayed message goes away, including time frozen
+     * while its Activity is stopped, or <code>-1</code> if unknown yet.
+     */
+    public long getRemaining() {
+        return mRemaining;
+    }
+
+    /**
+     * @see AppMsg#getTag()
+     */
+    public Object getTag() {
+        return mTag;
+    }
+
+    /**
+     * @return The text, or <code>null</code> if it isn't resolved yet.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return The id of the custom parent of the message, or {@link View#NO_ID}.
+     */
+    public int getParentId() {
+        return mParentId;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('#').append(mId)
+                .append(' ').append(mState == STATE_STICKY ? "sticky"
+                        : mState == STATE_DISPLAYED ? "displayed" : "queued")
+                .append(" priority=").append(mPriority)
+                .append(" duration=").append(mDuration)
+                .append(" waited=").append(mWaitTime).append("ms");
+        if (mRemaining >= 0) {
+            sb.append(" remaining=").append(mRemaining).append("ms");
+        }
+        if (mTag != null) {
+            sb.append(" tag=").append(mTag);
+        }
+        if (mParentId != View.NO_ID) {
+            sb.append(" parent=0x").append(Integer.toHexString(mParentId));
+        }
+        if (mText != null) {
+            sb.append(" text=\"").append(mText).append('"');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import java.lang.reflect.Method;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+/**
+ * Optional <code>android.os.Trace</code> instrumentation of the {@link AppMsg} lifecycle,
+ * so that it shows up in systrace and Perfetto. Sections need API 18, async slices and
+ * counters API 29. The library compiles against an older SDK, so every method is looked up
+ * by reflection, once.
+ *
+ * @see AppMsg#setTracingEnabled(boolean)
+ */
+final class MsgTrace {
+
+    static final String SECTION_INFLATE = "AppMsg#inflate";
+    static final String SECTION_ADD_VIEW = "AppMsg#addMsgToView";
+    static final String SECTION_REMOVE = "AppMsg#removeMsg";
+    static final String SECTION_REMOVE_VIEW = "AppMsg#removeView";
+
+    private static final String SLICE_MESSAGE = "AppMsg";
+    private static final String COUNTER_QUEUE = "AppMsg queue";
+    private static final String COUNTER_STICKY = "AppMsg sticky";
+
+    /** Build.VERSION_CODES.JELLY_BEAN_MR2 */
+    private static final int JELLY_BEAN_MR2 = 18;
+    /** Build.VERSION_CODES.Q */
+    private static final int Q = 29;
+
+    static boolean sEnabled;
+
+    private static boolean sResolved;
+    private static Method sBeginSection;
+    private static Method sEndSection;
+    private static Method sBeginAsyncSection;
+    private static Method sEndAsyncSection;
+    private static Method sSetCounter;
+
+    private MsgTrace() {
+    }
+
+    /**
+     * @return Whether a section has begun, to be ended by {@link #endSection()}.
+     */
+    static boolean beginSection(String name) {
+        return sEnabled && resolve() && sBeginSection != null
+                && invoke(sBeginSection, name);
+    }
+
+    static void endSection() {
+        if (sEndSection != null) {
+            invoke(sEndSection);
+        }
+    }
+
+    /**
+     * Begins the async slice spanning an {@link AppMsg} from enqueue to removal.
+     */
+    static void beginMessage(AppMsg appMsg) {
+        if (sEnabled && resolve() && sBeginAsyncSection != null
+                && invoke(sBeginAsyncSection, SLICE_MESSAGE, appMsg.mId)) {
+            appMsg.mTraced = true;
+        }
+    }
+
+    static void endMessage(AppMsg appMsg) {
+        if (appMsg.mTraced) {
+            invoke(sEndAsyncSection, SLICE_MESSAGE, appMsg.mId);
+            appMsg.mTraced = false;
+        }
+    }
+
+    static void setDepth(int queued, int sticky) {
+        if (sEnabled && resolve() && sSetCounter != null) {
+            invoke(sSetCounter, COUNTER_QUEUE, (long) queued);
+            invoke(sSetCounter, COUNTER_STICKY, (long) sticky);
+        }
+    }
+
+    /**
+     * Looks up the methods of <code>android.os.Trace</code> available on this device, once.
+     *
+     * @return Whether some may be available.
+     */
+    private static boolean resolve() {
+        if (SDK_INT < JELLY_BEAN_MR2) {
+            return false;
+        }
+        if (!sResolved) {
+            sResolved = true;
+            try {
+                final Class<?> trace = Class.forName("android.os.Trace");
+                sBeginSection = trace.getMethod("beginSection", String.class);
+                sEndSection = trace.getMethod("endSection");
+                if (SDK_INT >= Q) {
+                    sBeginAsyncSection = trace.getMethod("beginAsyncSection",
+                            String.class, int.class);
+                    sEndAsyncSection = trace.getMethod("endAsyncSection",
+                            String.class, int.class);
+                    sSetCounter = trace.getMethod("setCounter", String.class, long.class);
+                }
+            } catch (Exception e) {
+                // Tracing is best effort, leave out what's missing
+                if (sEndSection == null) {
+                    sBeginSection = null;
+                }
+                sBeginAsyncSection = null;
+                sEndAsyncSection = null;
+                sSetCounter = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the method was invoked.
+     */
+    private static boolean invoke(Method method, Object... args) {
+        try {
+            method.invoke(null, args);
+            return true;
+        } catch (Exception e) {
+            return false; // Tracing is best effort
+        }
+    }
+}
@@ -0,0 +1,735 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+
+import static com.devspark.appmsg.AppMsg.LENGTH_STICKY;
+
+/**
+ * <p>Replays {@link AppMsg} traffic against a virtual clock, to see how a notification rate,
+ * priority mix and durations translate into queue depth and display latency. It doesn't
+ * touch any Android class, so it runs on the plain JVM, e.g. in unit tests, and handles
+ * millions of messages in seconds.</p>
+ *
+ * <p>The simulation follows the scheduling of {@link MsgManager} with the same ordering,
+ * queues, sticky handling and {@link DispatchPolicy}: preemption, idle dispatch, one message
+ * at a time when animations are reduced, and frozen timers while the Activity is stopped.
+ * The busy main thread, the animation mode and stops are given instead of observed.</p>
+ *
+ * <pre>
+ * QueueSimulator simulator = new QueueSimulator().setPriorityAging(10000);
+ * Random random = new Random(42);
+ * simulator.addTraffic(random, 1000000, 0.2, AppMsg.PRIORITY_NORMAL, AppMsg.LENGTH_SHORT);
+ * simulator.addTraffic(random, 100000, 0.02, AppMsg.PRIORITY_HIGH, AppMsg.LENGTH_LONG);
+ * System.out.println(simulator.run());
+ * </pre>
+ */
+public class QueueSimulator {
+
+    private static final int EVENT_ENQUEUE = 0;
+    private static final int EVENT_DISPLAY = 1;
+    private static final int EVENT_ADD_VIEW = 2;
+    private static final int EVENT_REMOVE = 3;
+    private static final int EVENT_CANCEL = 4;
+    private static final int EVENT_IDLE = 5;
+    private static final int EVENT_BUSY = 6;
+    private static final int EVENT_PAUSE = 7;
+    private static final int EVENT_RESUME = 8;
+
+    /** Durations of android.R.anim.fade_in and fade_out, the default animations. */
+    private static final long DEFAULT_IN_DURATION = 500;
+    private static final long DEFAULT_OUT_DURATION = 400;
+
+    private static final MsgOrder<Msg> ORDER = new MsgOrder<Msg>() {
+        @Override
+        int priority(Msg msg) {
+            return msg.priority;
+        }
+
+        @Override
+        long agingKey(Msg msg) {
+            return msg.agingKey;
+        }
+
+        @Override
+        long sequence(Msg msg) {
+            return msg.sequence;
+        }
+    };
+
+    private static final Comparator<Event> EVENT_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event lhs, Event rhs) {
+            if (lhs.time != rhs.time) {
+                return lhs.time < rhs.time ? -1 : 1;
+            }
+            return lhs.seq < rhs.seq ? -1 : (lhs.seq == rhs.seq ? 0 : 1);
+        }
+    };
+
+    private final DispatchPolicy<Msg> mPolicy = new DispatchPolicy<Msg>() {
+        @Override
+        int priority(Msg msg) {
+            return msg.priority;
+        }
+
+        @Override
+        boolean isShowing(Msg msg) {
+            return msg.showing;
+        }
+
+        @Override
+        boolean isSticky(Msg msg) {
+            return msg.duration == LENGTH_STICKY;
+        }
+
+        @Override
+        boolean isTimed(Msg msg) {
+            return msg.removeAt > 0;
+        }
+
+        @Override
+        int preemptionThreshold() {
+            return mPreemptionThreshold;
+        }
+
+        @Override
+        int idleThreshold() {
+            return mIdleThreshold;
+        }
+
+        @Override
+        boolean allowsConcurrent() {
+            return mAnimationMode == AppMsg.ANIMATIONS_FULL;
+        }
+    };
+
+    private boolean mPriorityLanes;
+    private long mAgingInterval;
+    private int mMaxStickyCount;
+    private long mStickyLifetime;
+    private int mPreemptionThreshold = AppMsg.PRIORITY_HIGH;
+    private boolean mRequeuePreempted;
+    private int mIdleThreshold = AppMsg.PRIORITY_LOW;
+    private int mAnimationMode = AppMsg.ANIMATIONS_FULL;
+    private boolean mDefaultAnimations = true;
+    private long mInDuration = DEFAULT_IN_DURATION;
+    private long mOutDuration = DEFAULT_OUT_DURATION;
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>(64, EVENT_ORDER);
+    private long mSeq;
+    private long mNow;
+    private int mDisplayGeneration;
+    private boolean mPaused;
+    private boolean mWaitingForIdle, mIdle;
+    private long mBusyUntil;
+
+    private Queue<Msg> mQueue;
+    private final LinkedHashSet<Msg> mStickies = new LinkedHashSet<Msg>();
+
+    private final LongArray[] mLatencies = new LongArray[MsgOrder.LEVEL_COUNT];
+    private long mEnqueued;
+    private long mMsgSequence;
+    private long mEvicted;
+    private int mMaxDepth;
+    private double mDepthTime;
+    private long mDepthSince;
+
+    public QueueSimulator() {
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LongArray();
+        }
+    }
+
+    /**
+     * @see AppMsg#setPriorityLanes(boolean)
+     */
+    public QueueSimulator setPriorityLanes(boolean lanes) {
+        ensureNotStarted();
+        mPriorityLanes = lanes;
+        return this;
+    }
+
+    /**
+     * @see AppMsg#setPriorityAging(long)
+     */
+    public QueueSimulator setPriorityAging(long interval) {
+        ensureNotStarted();
+        mAgingInterval = interval;
+        return this;
+    }
+
+    /**
+     * @see AppMsg#setMaxStickyCount(int)
+     */
+    public QueueSimulator setMaxStickyCount(int maxCount) {
+        ensureNotStarted();
+        mMaxStickyCount = maxCount;
+        return this;
+    }
+
+    /**
+     * @see AppMsg#setPreemption(int, boolean)
+     */
+    public QueueSimulator setPreemption(int threshold, boolean requeue) {
+        ensureNotStarted();
+        mPreemptionThreshold = threshold;
+        mRequeuePreempted = requeue;
+        return this;
+    }
+
+    /**
+     * Makes messages with a priority below <code>threshold</code> wait for the main thread
+     * to be idle, which it is unless made {@link #busy(long, long)}.
+     *
+     * @see AppMsg#setIdleDispatch(int, AppMsg.BusySignal)
+     */
+    public QueueSimulator setIdleDispatch(int threshold) {
+        ensureNotStarted();
+        mIdleThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sets the animation mode for the whole simulation, {@link AppMsg#ANIMATIONS_FULL} by
+     * default. Other modes display one message at a time and shorten or skip animations,
+     * as when {@link AppMsg#setJankAdaptive(boolean)} notices dropped frames.
+     */
+    public QueueSimulator setAnimationMode(int mode) {
+        ensureNotStarted();
+        mAnimationMode = mode;
+        return this;
+    }
+
+    /**
+     * Sets how long the user takes to dismiss a displayed sticky message, <code>0</code>
+     * (the default) if sticky messages are never dismissed.
+     */
+    public QueueSimulator setStickyLifetime(long lifetime) {
+        mStickyLifetime = lifetime;
+        return this;
+    }
+
+    /**
+     * Sets the durations of the in and out animations, 500 and 400 milliseconds by default.
+     */
+    public QueueSimulator setAnimationDurations(long in, long out) {
+        mDefaultAnimations = false;
+        mInDuration = in;
+        mOutDuration = out;
+        return this;
+    }
+
+    /**
+     * Enqueues a message at given time, as {@link AppMsg#show()} would.
+     *
+     * @param time     Virtual time in milliseconds, not before the time already simulated.
+     * @param priority The priority of the message.
+     * @param duration The duration of the message, may be {@link AppMsg#LENGTH_STICKY}.
+     */
+    public QueueSimulator enqueue(long time, int priority, int duration) {
+        final Msg msg = new Msg();
+        msg.priority = priority;
+        msg.duration = duration;
+        post(checkTime(time), EVENT_ENQUEUE, msg, 0);
+        return this;
+    }
+
+    /**
+     * Keeps the main thread busy from given time on for <code>duration</code> milliseconds,
+     * so that messages waiting for it to be idle stay queued meanwhile.
+     *
+     * @see #setIdleDispatch(int)
+     */
+    public QueueSimulator busy(long time, long duration) {
+        final Msg msg = new Msg();
+        msg.duration = (int) duration;
+        post(checkTime(time), EVENT_BUSY, msg, 0);
+        return this;
+    }
+
+    /**
+     * Stops the Activity at given time: timers of displayed messages freeze and nothing new
+     * gets displayed until {@link #resume(long)}.
+     *
+     * @see MsgManager#pause(android.app.Activity)
+     */
+    public QueueSimulator pause(long time) {
+        post(checkTime(time), EVENT_PAUSE, null, 0);
+        return this;
+    }
+
+    /**
+     * Starts the Activity again at given time.
+     *
+     * @see MsgManager#resume(android.app.Activity)
+     */
+    public QueueSimulator resume(long time) {
+        post(checkTime(time), EVENT_RESUME, null, 0);
+        return this;
+    }
+
+    /**
+     * Enqueues <code>count</code> messages arriving at random with the given average rate,
+     * starting at the current virtual time. Several calls overlay independent streams.
+     *
+     * @param perSecond Average number of messages per second.
+     */
+    public QueueSimulator addTraffic(Random random, int count, double perSecond, int priority,
+            int duration) {
+        double time = mNow;
+        for (int i = 0; i < count; i++) {
+            time += -Math.log(1 - random.nextDouble()) * 1000 / perSecond;
+            enqueue((long) time, priority, duration);
+        }
+        return this;
+    }
+
+    /**
+     * Runs the simulation until every enqueued message has been handled.
+     */
+    public Result run() {
+        if (mQueue == null) {
+            mQueue = mPriorityLanes
+                    ? new LaneQueue<Msg>(ORDER) : new PriorityQueue<Msg>(11, ORDER);
+        }
+        Event event;
+        while ((event = mEvents.poll()) != null) {
+            advance(event.time);
+            final Msg msg = event.msg;
+            switch (event.type) {
+                case EVENT_ENQUEUE:
+                    add(msg);
+                    break;
+                case EVENT_DISPLAY:
+                    if (event.generation == mDisplayGeneration) {
+                        displayMsg();
+                    }
+                    break;
+                case EVENT_ADD_VIEW:
+                    if (event.generation == msg.addGeneration) {
+                        msg.addPending = false;
+                        if (!msg.removed) {
+                            addMsgToView(msg);
+                        }
+                    }
+                    break;
+                case EVENT_REMOVE:
+                    if (event.generation == msg.removeGeneration) {
+                        clearMsg(msg);
+                    }
+                    break;
+                case EVENT_CANCEL:
+                    clearMsg(msg);
+                    break;
+                case EVENT_IDLE:
+                    idle();
+                    break;
+                case EVENT_BUSY:
+                    mBusyUntil = Math.max(mBusyUntil, mNow + msg.duration);
+                    break;
+                case EVENT_PAUSE:
+                    pauseMsgs();
+                    break;
+                case EVENT_RESUME:
+                    resumeMsgs();
+                    break;
+            }
+        }
+        return new Result(this);
+    }
+
+    private void add(Msg msg) {
+        mEnqueued++;
+        msg.queuedAt = mNow;
+        msg.agingKey = MsgOrder.agingKey(msg.priority, mNow, mAgingInterval);
+        msg.sequence = ++mMsgSequence;
+        mQueue.add(msg);
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        if (mPolicy.preempts(msg, mPaused)) {
+            preemptFor(msg);
+        }
+        displayMsg();
+    }
+
+    private void preemptFor(Msg urgent) {
+        List<Msg> preempted = null;
+        for (Msg msg : mQueue) {
+            if (mPolicy.isPreemptedBy(msg, urgent)) {
+                if (preempted == null) {
+                    preempted = new ArrayList<Msg>(1);
+                }
+                preempted.add(msg);
+            }
+        }
+        if (preempted == null) {
+            return;
+        }
+        for (Msg msg : preempted) {
+            if (!mRequeuePreempted) {
+                clearMsg(msg);
+                continue;
+            }
+            msg.removeGeneration++;
+            mQueue.remove(msg);
+            msg.showing = false;
+            msg.remaining = DispatchPolicy.remaining(msg.removeAt, mNow);
+            msg.removeAt = 0;
+            // Behind the urgent one, as MsgManager does
+            msg.queuedAt = mNow;
+            msg.agingKey = MsgOrder.agingKey(msg.priority, mNow, mAgingInterval);
+            msg.sequence = ++mMsgSequence;
+            mQueue.add(msg);
+        }
+    }
+
+    private void displayMsg() {
+        final Msg msg = mQueue.peek();
+        switch (mPolicy.next(mQueue, mPaused, mIdle)) {
+            case DispatchPolicy.DISPATCH_IDLE:
+                if (!mWaitingForIdle) {
+                    mWaitingForIdle = true;
+                    post(mNow, EVENT_IDLE, null, 0);
+                }
+                break;
+            case DispatchPolicy.DISPATCH_ADD_VIEW:
+                if (!msg.addPending) {
+                    msg.addPending = true;
+                    post(mNow, EVENT_ADD_VIEW, msg, msg.addGeneration);
+                }
+                break;
+            case DispatchPolicy.DISPATCH_NEXT:
+                post(mNow + msg.duration + inDuration() + outDuration(), EVENT_DISPLAY, null,
+                        ++mDisplayGeneration);
+                break;
+        }
+    }
+
+    /**
+     * Runs once the main thread has nothing else to do at the current time, as
+     * {@link MsgManager}'s idle handler does.
+     */
+    private void idle() {
+        if (mNow < mBusyUntil) {
+            post(mNow + DispatchPolicy.BUSY_RECHECK_DELAY, EVENT_IDLE, null, 0);
+            return;
+        }
+        mWaitingForIdle = false;
+        mIdle = true;
+        displayMsg();
+        mIdle = false;
+    }
+
+    private void pauseMsgs() {
+        if (mPaused) {
+            return;
+        }
+        mPaused = true;
+        mDisplayGeneration++;
+        for (Msg msg : mQueue) {
+            if (msg.addPending) {
+                msg.addPending = false;
+                msg.addGeneration++;
+            }
+            if (msg.removeAt > 0) {
+                msg.removeGeneration++;
+                msg.remaining = DispatchPolicy.remaining(msg.removeAt, mNow);
+                msg.removeAt = 0;
+            }
+        }
+    }
+
+    private void resumeMsgs() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        for (Msg msg : mQueue) {
+            if (msg.remaining > 0 && msg.showing) {
+                scheduleRemove(msg, msg.remaining);
+                msg.remaining = 0;
+            }
+        }
+        displayMsg();
+    }
+
+    private void addMsgToView(Msg msg) {
+        msg.showing = true;
+        if (!msg.displayed) { // Not displayed before being preempted
+            msg.displayed = true;
+            mLatencies[MsgOrder.priorityLevel(msg.priority)].add(mNow - msg.queuedAt);
+        }
+        if (msg.duration != LENGTH_STICKY) {
+            scheduleRemove(msg, msg.remaining > 0 ? msg.remaining : msg.duration);
+            msg.remaining = 0;
+        } else {
+            mQueue.remove(msg);
+            mStickies.add(msg);
+            if (mStickyLifetime > 0) {
+                post(mNow + mStickyLifetime, EVENT_CANCEL, msg, 0);
+            }
+            if (mMaxStickyCount > 0 && mStickies.size() > mMaxStickyCount) {
+                mEvicted++;
+                clearMsg(mStickies.iterator().next());
+            }
+        }
+    }
+
+    private void scheduleRemove(Msg msg, long delay) {
+        msg.removeAt = mNow + delay;
+        post(msg.removeAt, EVENT_REMOVE, msg, msg.removeGeneration);
+    }
+
+    private void clearMsg(Msg msg) {
+        if (msg.removed) {
+            return;
+        }
+        msg.removed = true;
+        msg.showing = false;
+        msg.removeAt = 0;
+        mQueue.remove(msg);
+        mStickies.remove(msg);
+        post(mNow, EVENT_DISPLAY, null, ++mDisplayGeneration);
+    }
+
+    private long inDuration() {
+        return animationDuration(mInDuration);
+    }
+
+    private long outDuration() {
+        return animationDuration(mOutDuration);
+    }
+
+    private long animationDuration(long duration) {
+        switch (mAnimationMode) {
+            case AppMsg.ANIMATIONS_OFF:
+                return 0;
+            case AppMsg.ANIMATIONS_SHORT:
+                return mDefaultAnimations ? MsgManager.SHORT_ANIMATION_DURATION : duration;
+            default:
+                return duration;
+        }
+    }
+
+    private long checkTime(long time) {
+        if (time < mNow) {
+            throw new IllegalArgumentException("time " + time + " is before " + mNow);
+        }
+        return time;
+    }
+
+    private void advance(long time) {
+        if (mQueue.size() > 0) {
+            mDepthTime += (double) mQueue.size() * (time - mDepthSince);
+        }
+        mDepthSince = time;
+        mNow = time;
+    }
+
+    private void post(long time, int type, Msg msg, int generation) {
+        final Event event = new Event();
+        event.time = time;
+        event.seq = mSeq++;
+        event.type = type;
+        event.msg = msg;
+        event.generation = generation;
+        mEvents.add(event);
+    }
+
+    private void ensureNotStarted() {
+        if (mQueue != null) {
+            throw new IllegalStateException("The simulation has already started");
+        }
+    }
+
+    private static class Msg {
+        int priority;
+        int duration;
+        long queuedAt;
+        long agingKey;
+        long sequence;
+        long removeAt;
+        long remaining;
+        int addGeneration;
+        int removeGeneration;
+        boolean showing;
+        boolean addPending;
+        boolean displayed;
+        boolean removed;
+    }
+
+    private static class Event {
+        long time;
+        long seq;
+        int type;
+        Msg msg;
+        int generation;
+    }
+
+    private static class LongArray {
+        long[] values = new long[16];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Outcome of a simulation. Latencies are measured from {@link AppMsg#show()} until
+     * the view is added, in milliseconds.
+     */
+    public static final class Result {
+
+        private final long[][] mLatencies;
+        private final long[] mAllLatencies;
+        private final long mEnqueued;
+        private final long mEvicted;
+        private final int mMaxDepth;
+        private final double mMeanDepth;
+        private final long mDuration;
+
+        Result(QueueSimulator simulator) {
+            int total = 0;
+            mLatencies = new long[MsgOrder.LEVEL_COUNT][];
+            for (int i = 0; i < mLatencies.length; i++) {
+                final LongArray latencies = simulator.mLatencies[i];
+                mLatencies[i] = Arrays.copyOf(latencies.values, latencies.size);
+                Arrays.sort(mLatencies[i]);
+                total += latencies.size;
+            }
+            mAllLatencies = new long[total];
+            int offset = 0;
+            for (long[] latencies : mLatencies) {
+                System.arraycopy(latencies, 0, mAllLatencies, offset, latencies.length);
+                offset += latencies.length;
+            }
+            Arrays.sort(mAllLatencies);
+            mEnqueued = simulator.mEnqueued;
+            mEvicted = simulator.mEvicted;
+            mMaxDepth = simulator.mMaxDepth;
+            mDuration = simulator.mNow;
+            mMeanDepth = mDuration > 0 ? simulator.mDepthTime / mDuration : 0;
+        }
+
+        /**
+         * @return Number of enqueued messages.
+         */
+        public long getEnqueuedCount() {
+            return mEnqueued;
+        }
+
+        /**
+         * @return Number of displayed messages.
+         */
+        public long getDisplayedCount() {
+            return mAllLatencies.length;
+        }
+
+        /**
+         * @return Number of sticky messages dismissed to respect the maximum sticky count.
+         */
+        public long getEvictedCount() {
+            return mEvicted;
+        }
+
+        /**
+         * @return The largest number of messages queued at once, displayed or not.
+         */
+        public int getMaxQueueDepth() {
+            return mMaxDepth;
+        }
+
+        /**
+         * @return The average number of messages queued over time.
+         */
+        public double getMeanQueueDepth() {
+            return mMeanDepth;
+        }
+
+        /**
+         * @return Virtual time at which the last event was handled, in milliseconds.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        /**
+         * @param percentile From 0 to 100.
+         * @return The display latency at given percentile over all messages.
+         */
+        public long getLatency(double percentile) {
+            return percentile(mAllLatencies, percentile);
+        }
+
+        /**
+         * @param priority   A priority, messages with the same priority level are accounted
+         *                   together.
+         * @param percentile From 0 to 100.
+         * @return The display latency at given percentile over messages of given priority.
+         */
+        public long getLatency(int priority, double percentile) {
+            return percentile(mLatencies[MsgOrder.priorityLevel(priority)], percentile);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.min(Math.max(rank - 1, 0), sorted.length - 1)];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("enqueued=").append(mEnqueued)
+                    .append(" displayed=").append(getDisplayedCount())
+                    .append(" evicted=").append(mEvicted)
+                    .append(" maxDepth=").append(mMaxDepth)
+                    .append(" meanDepth=").append(String.format("%.2f", mMeanDepth))
+                    .append(" duration=").append(mDuration).append("ms\n");
+            appendLatencies(sb, "all", mAllLatencies);
+            appendLatencies(sb, "low", mLatencies[0]);
+            appendLatencies(sb, "normal", mLatencies[1]);
+            appendLatencies(sb, "high", mLatencies[2]);
+            return sb.toString();
+        }
+
+        private static void appendLatencies(StringBuilder sb, String name, long[] sorted) {
+            if (sorted.length == 0) {
+                return;
+            }
+            sb.append(name).append(": n=").append(sorted.length)
+                    .append(" p50=").append(percentile(sorted, 50))
+                    .append(" p90=").append(percentile(sorted, 90))
+                    .append(" p99=").append(percentile(sorted, 99))
+                    .append(" max=").append(sorted[sorted.length - 1]).append("ms\n");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import android.os.Debug;
+import android.os.Message;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.ViewGroup;
+
+/**
+ * Checks that showing and removing {@link AppMsg}s doesn't allocate once warmed up.
+ */
+public class DispatchAllocationTest extends ActivityInstrumentationTestCase2<TestActivity> {
+
+    private static final int WARM_UP_CYCLES = 100;
+    private static final int CYCLES = 1000;
+
+    public DispatchAllocationTest() {
+        super(TestActivity.class);
+    }
+
+    public void testShowRemoveCyclesDontAllocate() throws Throwable {
+        final TestActivity activity = getActivity();
+        final int[] allocations = new int[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                final AppMsg appMsg = AppMsg.makeText(activity, "Allocations", AppMsg.STYLE_INFO);
+                appMsg.setParent(activity.container);
+                final MsgManager manager = MsgManager.obtain(activity, activity.container);
+                final Message addView = Message.obtain(manager, MsgManager.MESSAGE_ADD_VIEW,
+                        appMsg.mToken);
+                for (int i = 0; i < WARM_UP_CYCLES; i++) {
+                    cycle(manager, appMsg, addView, activity.container);
+                }
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                for (int i = 0; i < CYCLES; i++) {
+                    cycle(manager, appMsg, addView, activity.container);
+                }
+                Debug.stopAllocCounting();
+                allocations[0] = Debug.getThreadAllocCount();
+                addView.recycle();
+            }
+        });
+        assertEquals("Allocations over " + CYCLES + " cycles", 0, allocations[0]);
+    }
+
+    /**
+     * Shows a message and removes it, as the main Looper would once its duration and its
+     * out animation have elapsed.
+     */
+    private static void cycle(MsgManager manager, AppMsg appMsg, Message addView,
+            ViewGroup parent) {
+        appMsg.show();
+        manager.handleMessage(addView);
+        manager.clearMsg(appMsg);
+        appMsg.mOutListener.onAnimationEnd(appMsg.mOutAnimation);
+        // Remove the view at once rather than once posted
+        parent.removeCallbacks(appMsg.mOutListener);
+        appMsg.mOutListener.run();
+    }
+}
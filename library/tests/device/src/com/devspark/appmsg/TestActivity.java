@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.widget.FrameLayout;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Hosts {@link AppMsg}s in tests.
+ */
+public class TestActivity extends Activity {
+
+    /** Counted down once destroyed, it doesn't reference the Activity. */
+    final CountDownLatch destroyed = new CountDownLatch(1);
+    FrameLayout container;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        container = new FrameLayout(this);
+        setContentView(container);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed.countDown();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import android.app.Activity;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a message kept by the application doesn't keep its destroyed Activity in memory
+ * once {@link AppMsg#setWeakReferences(boolean)} is on, and that it does otherwise.
+ */
+public class WeakReferenceLeakTest extends ActivityInstrumentationTestCase2<TestActivity> {
+
+    private static final int ONE_HOUR = 60 * 60 * 1000;
+    private static final int GC_ATTEMPTS = 20;
+
+    /** Kept like an application would, e.g. to cancel it later. */
+    private AppMsg mQueued;
+
+    public WeakReferenceLeakTest() {
+        super(TestActivity.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mQueued = null;
+        AppMsg.setWeakReferences(false);
+        super.tearDown();
+    }
+
+    public void testQueuedMessageDoesntLeakActivityInWeakMode() throws Throwable {
+        AppMsg.setWeakReferences(true);
+        final WeakReference<Activity> activity = showAndDestroy();
+        if (!collect(activity)) {
+            final File dump = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                    "appmsg-leak.hprof");
+            Debug.dumpHprofData(dump.getPath());
+            fail("Destroyed Activity still reachable, see " + dump);
+        }
+    }
+
+    /**
+     * Control run: without weak mode the kept message holds the Activity, so that the test
+     * above only passes because of it.
+     */
+    public void testQueuedMessageLeaksActivityInStrongMode() throws Throwable {
+        AppMsg.setWeakReferences(false);
+        final WeakReference<Activity> activity = showAndDestroy();
+        assertFalse("Destroyed Activity collected without weak mode", collect(activity));
+    }
+
+    /**
+     * Shows a long message and queues another one behind it, then destroys the Activity.
+     * Kept apart so that no local of the caller references the Activity.
+     */
+    private WeakReference<Activity> showAndDestroy() throws Throwable {
+        final TestActivity activity = getActivity();
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                final AppMsg displayed = AppMsg.makeText(activity, "Displayed", AppMsg.STYLE_INFO);
+                displayed.setDuration(ONE_HOUR);
+                displayed.show();
+                mQueued = AppMsg.makeText(activity, "Queued", AppMsg.STYLE_INFO);
+                mQueued.setDuration(ONE_HOUR);
+                mQueued.show();
+                activity.finish();
+            }
+        });
+        assertTrue("Activity not destroyed", activity.destroyed.await(5, TimeUnit.SECONDS));
+        setActivity(null);
+        return new WeakReference<Activity>(activity);
+    }
+
+    /**
+     * @return Whether the referent got collected after forcing a few garbage collections.
+     */
+    private static boolean collect(WeakReference<?> reference) {
+        for (int i = 0; i < GC_ATTEMPTS && reference.get() != null; i++) {
+            Runtime.getRuntime().gc();
+            Runtime.getRuntime().runFinalization();
+            SystemClock.sleep(100);
+        }
+        return reference.get() == null;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.devspark.appmsg.MsgOrderTest.ORDER;
+import static com.devspark.appmsg.MsgOrderTest.msg;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LaneQueueTest {
+
+    @Test
+    public void emptyQueue() {
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+        assertFalse(queue.iterator().hasNext());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNull() {
+        new LaneQueue<long[]>(ORDER).add(null);
+    }
+
+    @Test
+    public void highestLaneFirstThenFifo() {
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        for (int i = 0; i < 9; i++) {
+            queue.add(msg(i % 3 - 1, 0, 0, i));
+        }
+        assertEquals(9, queue.size());
+        final long[] expected = {2, 5, 8, 1, 4, 7, 0, 3, 6};
+        for (long sequence : expected) {
+            assertEquals(sequence, queue.peek()[2]);
+            assertEquals(sequence, queue.poll()[2]);
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void priorityWithinLevelIsIgnored() {
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        queue.add(msg(1, 0, 0, 1));
+        queue.add(msg(10, 0, 0, 2));
+        assertEquals(1, queue.poll()[2]);
+        assertEquals(2, queue.poll()[2]);
+    }
+
+    @Test
+    public void agedMessageOvertakesHigherLane() {
+        final long interval = 1000;
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        queue.add(msg(AppMsg.PRIORITY_LOW, 0, interval, 1));
+        queue.add(msg(AppMsg.PRIORITY_NORMAL, 1500, interval, 2));
+        queue.add(msg(AppMsg.PRIORITY_HIGH, 1500, interval, 3));
+        assertEquals(3, queue.poll()[2]);
+        assertEquals(1, queue.poll()[2]);
+        assertEquals(2, queue.poll()[2]);
+    }
+
+    @Test
+    public void removesFromTheMiddle() {
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        final long[] first = msg(0, 0, 0, 1);
+        final long[] second = msg(0, 0, 0, 2);
+        final long[] third = msg(0, 0, 0, 3);
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+        assertTrue(queue.remove(second));
+        assertFalse(queue.remove(second));
+        assertEquals(2, queue.size());
+        assertSame(first, queue.poll());
+        assertSame(third, queue.poll());
+    }
+
+    @Test
+    public void removesAll() {
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        final List<long[]> even = new ArrayList<long[]>();
+        for (int i = 0; i < 6; i++) {
+            final long[] msg = msg(i % 2, 0, 0, i);
+            queue.add(msg);
+            if (i % 2 == 0) {
+                even.add(msg);
+            }
+        }
+        assertTrue(queue.removeAll(even));
+        assertFalse(queue.removeAll(even));
+        assertEquals(3, queue.size());
+        assertEquals(1, queue.poll()[2]);
+        assertEquals(3, queue.poll()[2]);
+        assertEquals(5, queue.poll()[2]);
+    }
+
+    @Test
+    public void keepsOrderWhileGrowing() {
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        long added = 0;
+        long polled = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                queue.add(msg(0, 0, 0, added++));
+            }
+            assertEquals(polled++, queue.poll()[2]);
+        }
+        while (!queue.isEmpty()) {
+            assertEquals(polled++, queue.poll()[2]);
+        }
+        assertEquals(added, polled);
+    }
+
+    @Test
+    public void iteratesHighestLaneFirst() {
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        for (int i = 0; i < 6; i++) {
+            queue.add(msg(i % 3 - 1, 0, 0, i));
+        }
+        final long[] expected = {2, 5, 1, 4, 0, 3};
+        int index = 0;
+        for (long[] msg : queue) {
+            assertEquals(expected[index++], msg[2]);
+        }
+        assertEquals(expected.length, index);
+    }
+
+    @Test
+    public void orderedIteratorMatchesPolling() {
+        final long interval = 1000;
+        final LaneQueue<long[]> queue = new LaneQueue<long[]>(ORDER);
+        final LaneQueue<long[]> polled = new LaneQueue<long[]>(ORDER);
+        for (int i = 0; i < 30; i++) {
+            final long[] msg = msg(i % 3 - 1, i * 300, interval, i);
+            queue.add(msg);
+            polled.add(msg);
+        }
+        final Iterator<long[]> ordered = queue.orderedIterator();
+        while (!polled.isEmpty()) {
+            assertSame(polled.poll(), ordered.next());
+        }
+        assertFalse(ordered.hasNext());
+        assertEquals(30, queue.size());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void iteratorPastTheEnd() {
+        new LaneQueue<long[]>(ORDER).iterator().next();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import org.junit.Test;
+
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MsgOrderTest {
+
+    static final MsgOrder<long[]> ORDER = new MsgOrder<long[]>() {
+        @Override
+        int priority(long[] msg) {
+            return (int) msg[0];
+        }
+
+        @Override
+        long agingKey(long[] msg) {
+            return msg[1];
+        }
+
+        @Override
+        long sequence(long[] msg) {
+            return msg[2];
+        }
+    };
+
+    /** A message as <code>{priority, agingKey, sequence}</code>. */
+    static long[] msg(int priority, long queuedAt, long interval, long sequence) {
+        return new long[] {
+                priority, MsgOrder.agingKey(priority, queuedAt, interval), sequence};
+    }
+
+    @Test
+    public void priorityLevels() {
+        assertEquals(0, MsgOrder.priorityLevel(Integer.MIN_VALUE));
+        assertEquals(0, MsgOrder.priorityLevel(AppMsg.PRIORITY_LOW));
+        assertEquals(1, MsgOrder.priorityLevel(AppMsg.PRIORITY_NORMAL));
+        assertEquals(2, MsgOrder.priorityLevel(AppMsg.PRIORITY_HIGH));
+        assertEquals(2, MsgOrder.priorityLevel(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void agingDisabled() {
+        assertEquals(0, MsgOrder.agingKey(AppMsg.PRIORITY_HIGH, 1234, 0));
+    }
+
+    @Test
+    public void higherPriorityFirst() {
+        assertTrue(ORDER.compare(msg(5, 0, 0, 2), msg(1, 0, 0, 1)) < 0);
+        assertTrue(ORDER.compare(msg(-1, 0, 0, 1), msg(0, 0, 0, 2)) > 0);
+    }
+
+    @Test
+    public void samePriorityIsFifo() {
+        assertTrue(ORDER.compare(msg(0, 0, 0, 1), msg(0, 0, 0, 2)) < 0);
+        assertTrue(ORDER.compare(msg(0, 0, 0, 2), msg(0, 0, 0, 1)) > 0);
+        assertEquals(0, ORDER.compare(msg(0, 0, 0, 1), msg(0, 0, 0, 1)));
+    }
+
+    @Test
+    public void agedMessageOvertakesHigherPriority() {
+        final long interval = 1000;
+        final long[] low = msg(AppMsg.PRIORITY_LOW, 0, interval, 1);
+        final long[] normal = msg(AppMsg.PRIORITY_NORMAL, 999, interval, 2);
+        final long[] high = msg(AppMsg.PRIORITY_HIGH, 2001, interval, 3);
+        assertTrue(ORDER.compare(low, normal) > 0);
+        assertTrue(ORDER.compare(low, high) < 0);
+    }
+
+    @Test
+    public void pollsInOrder() {
+        final PriorityQueue<long[]> queue = new PriorityQueue<long[]>(11, ORDER);
+        for (int i = 0; i < 9; i++) {
+            queue.add(msg(i % 3 - 1, 0, 0, i));
+        }
+        final long[] expected = {2, 5, 8, 1, 4, 7, 0, 3, 6};
+        for (long sequence : expected) {
+            assertEquals(sequence, queue.poll()[2]);
+        }
+    }
+}
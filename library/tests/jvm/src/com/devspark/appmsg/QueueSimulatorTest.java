@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.devspark.appmsg.AppMsg.ANIMATIONS_OFF;
+import static com.devspark.appmsg.AppMsg.LENGTH_SHORT;
+import static com.devspark.appmsg.AppMsg.LENGTH_STICKY;
+import static com.devspark.appmsg.AppMsg.PRIORITY_HIGH;
+import static com.devspark.appmsg.AppMsg.PRIORITY_LOW;
+import static com.devspark.appmsg.AppMsg.PRIORITY_NORMAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueueSimulatorTest {
+
+    @Test
+    public void displaysAtOnce() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .run();
+        assertEquals(1, result.getEnqueuedCount());
+        assertEquals(1, result.getDisplayedCount());
+        assertEquals(0, result.getLatency(100));
+        assertEquals(LENGTH_SHORT, result.getDuration());
+    }
+
+    @Test
+    public void waitsForThePreviousOne() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .run();
+        assertEquals(LENGTH_SHORT, result.getLatency(100));
+        assertEquals(2, result.getMaxQueueDepth());
+    }
+
+    @Test
+    public void higherPriorityDisplaysAlongside() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .enqueue(1000, PRIORITY_HIGH, LENGTH_SHORT)
+                .run();
+        assertEquals(0, result.getLatency(PRIORITY_HIGH, 100));
+    }
+
+    @Test
+    public void oneAtATimeWhenAnimationsAreReduced() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .setAnimationMode(ANIMATIONS_OFF)
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .enqueue(1000, PRIORITY_HIGH, LENGTH_SHORT)
+                .run();
+        assertEquals(LENGTH_SHORT - 1000, result.getLatency(PRIORITY_HIGH, 100));
+    }
+
+    @Test
+    public void preemptionDismisses() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .setPreemption(PRIORITY_NORMAL, false)
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .enqueue(1000, PRIORITY_HIGH, LENGTH_SHORT)
+                .run();
+        assertEquals(2, result.getDisplayedCount());
+        assertEquals(0, result.getLatency(PRIORITY_HIGH, 100));
+        assertEquals(1000 + LENGTH_SHORT, result.getDuration());
+    }
+
+    @Test
+    public void preemptionRequeuesWithTimeLeft() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .setPreemption(PRIORITY_NORMAL, true)
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .enqueue(1000, PRIORITY_HIGH, LENGTH_SHORT)
+                .run();
+        // Counted once, and displayed again for its last 2 seconds once the urgent one is gone
+        assertEquals(2, result.getDisplayedCount());
+        assertEquals(1000 + LENGTH_SHORT + LENGTH_SHORT - 1000, result.getDuration());
+    }
+
+    @Test
+    public void lowPriorityWaitsForIdle() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .setIdleDispatch(PRIORITY_NORMAL)
+                .busy(0, 1050)
+                .enqueue(0, PRIORITY_LOW, LENGTH_SHORT)
+                .enqueue(1500, PRIORITY_NORMAL, LENGTH_SHORT)
+                .run();
+        assertEquals(0, result.getLatency(PRIORITY_NORMAL, 100));
+        // Noticed on the first check once the main thread is idle
+        assertEquals(1100, result.getLatency(PRIORITY_LOW, 100));
+    }
+
+    @Test
+    public void pauseFreezesTimers() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT)
+                .pause(1000)
+                .resume(5000)
+                .run();
+        assertEquals(5000 + LENGTH_SHORT - 1000, result.getLatency(100));
+        assertEquals(5000 + 2 * LENGTH_SHORT - 1000, result.getDuration());
+    }
+
+    @Test
+    public void nothingDisplayedWhilePaused() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .pause(0)
+                .enqueue(100, PRIORITY_HIGH, LENGTH_SHORT)
+                .resume(1000)
+                .run();
+        assertEquals(900, result.getLatency(100));
+    }
+
+    @Test
+    public void evictsOldestSticky() {
+        final QueueSimulator.Result result = new QueueSimulator()
+                .setMaxStickyCount(2)
+                .enqueue(0, PRIORITY_NORMAL, LENGTH_STICKY)
+                .enqueue(100, PRIORITY_NORMAL, LENGTH_STICKY)
+                .enqueue(200, PRIORITY_NORMAL, LENGTH_STICKY)
+                .run();
+        assertEquals(3, result.getDisplayedCount());
+        assertEquals(1, result.getEvictedCount());
+    }
+
+    @Test
+    public void agingShortensLowPriorityLatency() {
+        final QueueSimulator.Result fixed = simulateMix(new QueueSimulator());
+        final QueueSimulator.Result aged = simulateMix(new QueueSimulator().setPriorityAging(10000));
+        assertEquals(fixed.getDisplayedCount(), aged.getDisplayedCount());
+        assertTrue(aged.getLatency(PRIORITY_LOW, 100) < fixed.getLatency(PRIORITY_LOW, 100));
+    }
+
+    private static QueueSimulator.Result simulateMix(QueueSimulator simulator) {
+        final Random random = new Random(42);
+        return simulator
+                .addTraffic(random, 2000, 0.3, PRIORITY_NORMAL, LENGTH_SHORT)
+                .addTraffic(random, 200, 0.03, PRIORITY_LOW, LENGTH_SHORT)
+                .run();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void settingsAreFixedOnceStarted() {
+        final QueueSimulator simulator = new QueueSimulator();
+        simulator.run();
+        simulator.setPriorityLanes(true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timeDoesntGoBack() {
+        final QueueSimulator simulator = new QueueSimulator();
+        simulator.enqueue(1000, PRIORITY_NORMAL, LENGTH_SHORT).run();
+        simulator.enqueue(0, PRIORITY_NORMAL, LENGTH_SHORT);
+    }
+}
@@ -18,6 +18,7 @@ package com.devspark.appmsg.sample;
 
 import android.animation.LayoutTransition;
 import android.annotation.TargetApi;
+import android.content.Intent;
 import android.os.Bundle;
 import android.support.v7.app.ActionBarActivity;
 import android.view.View;
@@ -102,6 +103,9 @@ public class MainActivity extends ActionBarActivity {
             case R.id.cancel_all:
                 AppMsg.cancelAll(this);
                 break;
+            case R.id.stress:
+                startActivity(new Intent(this, StressActivity.class));
+                break;
             default:
                 return;
         }
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2012 Evgeny Shishkin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.devspark.appmsg.sample;
+
+import android.annotation.TargetApi;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v7.app.ActionBarActivity;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import com.devspark.appmsg.AppMsg;
+import com.devspark.appmsg.MsgSnapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
+import static com.devspark.appmsg.AppMsg.LENGTH_STICKY;
+
+/**
+ * Puts AppMsg under load: producer threads fire messages at a given rate, while the queue
+ * depth, display latency, dropped frames and heap usage are shown live.
+ *
+ * <p>Latency is measured from {@link AppMsg#show()} to display, from queue snapshots taken
+ * every {@link #SAMPLE_PERIOD} ms, so messages that come and go between two snapshots
+ * aren't counted.</p>
+ */
+public class StressActivity extends ActionBarActivity {
+    /** Period of queue snapshots, in ms. */
+    private static final long SAMPLE_PERIOD = 100;
+    /** Snapshots between two refreshes of the stats. */
+    private static final int SAMPLES_PER_REFRESH = 5;
+    /** Number of last latencies percentiles are computed from. */
+    private static final int LATENCY_WINDOW = 1024;
+    private static final long FRAME_INTERVAL = 1000000000L / 60;
+    private static final AppMsg.Style[] STYLES = {
+            AppMsg.STYLE_ALERT, AppMsg.STYLE_CONFIRM, AppMsg.STYLE_INFO
+    };
+
+    private final Handler mHandler = new Handler();
+    private final List<Thread> mProducers = new ArrayList<Thread>();
+    private volatile boolean mRunning;
+
+    private EditText mRate;
+    private EditText mProducerCount;
+    private EditText mHighRatio;
+    private EditText mLowRatio;
+    private EditText mStickyRatio;
+    private EditText mDuration;
+    private CheckBox mMixStyles;
+    private Button mToggle;
+    private TextView mStats;
+
+    private int mDurationValue;
+    private int mSent;
+    private int mDisplayedCount;
+    private int mDepth;
+    private int mMaxDepth;
+    private int mSamples;
+    private Set<Integer> mDisplayed = new HashSet<Integer>();
+    private final long[] mLatencies = new long[LATENCY_WINDOW];
+    private int mLatencyCount;
+    private int mLastSent;
+    private int mLastDisplayedCount;
+    private long mLastRefresh;
+    private int mFrames;
+    private int mDroppedFrames;
+    private Object mFrameCounter;
+
+    private final Runnable mSampler = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            if (mRunning) {
+                mHandler.postDelayed(this, SAMPLE_PERIOD);
+            }
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stress);
+
+        mRate = (EditText) findViewById(R.id.rate_txt);
+        mProducerCount = (EditText) findViewById(R.id.producers_txt);
+        mHighRatio = (EditText) findViewById(R.id.high_ratio_txt);
+        mLowRatio = (EditText) findViewById(R.id.low_ratio_txt);
+        mStickyRatio = (EditText) findViewById(R.id.sticky_ratio_txt);
+        mDuration = (EditText) findViewById(R.id.duration_txt);
+        mMixStyles = (CheckBox) findViewById(R.id.mix_styles_chk);
+        mToggle = (Button) findViewById(R.id.toggle);
+        mStats = (TextView) findViewById(R.id.stats);
+    }
+
+    /**
+     * Button onClick listener.
+     *
+     * @param v
+     */
+    public void buttonClick(View v) {
+        if (v.getId() != R.id.toggle) {
+            return;
+        }
+        if (mRunning) {
+            stop();
+        } else {
+            start();
+        }
+    }
+
+    private void start() {
+        final int rate = Math.max(1, readInt(mRate, 5));
+        final int producers = Math.max(1, readInt(mProducerCount, 1));
+        final int highRatio = readInt(mHighRatio, 0);
+        final int lowRatio = readInt(mLowRatio, 0);
+        final int stickyRatio = readInt(mStickyRatio, 0);
+        final boolean mixStyles = mMixStyles.isChecked();
+        mDurationValue = Math.max(1, readInt(mDuration, AppMsg.LENGTH_SHORT));
+
+        mSent = 0;
+        mDisplayedCount = 0;
+        mMaxDepth = 0;
+        mSamples = 0;
+        mDisplayed.clear();
+        mLatencyCount = 0;
+        mLastSent = 0;
+        mLastDisplayedCount = 0;
+        mLastRefresh = SystemClock.uptimeMillis();
+        mFrames = 0;
+        mDroppedFrames = 0;
+
+        mRunning = true;
+        for (int i = 0; i < producers; i++) {
+            final Thread producer = new Thread(
+                    new Producer(rate, highRatio, lowRatio, stickyRatio, mixStyles),
+                    "AppMsgProducer-" + i);
+            mProducers.add(producer);
+            producer.start();
+        }
+        mHandler.post(mSampler);
+        if (SDK_INT >= JELLY_BEAN) {
+            startCountingFrames();
+        }
+        mToggle.setText(R.string.stress_stop);
+    }
+
+    private void stop() {
+        mRunning = false;
+        for (Thread producer : mProducers) {
+            producer.interrupt();
+        }
+        mProducers.clear();
+        mHandler.removeCallbacks(mSampler);
+        refreshStats();
+        AppMsg.cancelAll(this);
+        mToggle.setText(R.string.stress_start);
+    }
+
+    private static int readInt(EditText field, int defaultValue) {
+        try {
+            return Integer.parseInt(field.getText().toString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Called on the main thread for each message a producer fires.
+     */
+    private void showMsg(AppMsg.Style style, int priority, boolean sticky) {
+        if (!mRunning) {
+            return; // Posted before stopping
+        }
+        mSent++;
+        final AppMsg appMsg = new AppMsg.Builder(this)
+                .setText("msg#" + mSent)
+                .setStyle(style)
+                .build();
+        appMsg.setDuration(sticky ? LENGTH_STICKY : mDurationValue);
+        appMsg.setPriority(priority);
+        appMsg.show();
+    }
+
+    private void sample() {
+        final List<MsgSnapshot> snapshot = AppMsg.getQueueSnapshot(this);
+        final Set<Integer> displayed = new HashSet<Integer>();
+        int queued = 0;
+        for (MsgSnapshot msg : snapshot) {
+            if (msg.getState() == MsgSnapshot.STATE_QUEUED) {
+                queued++;
+                continue;
+            }
+            displayed.add(msg.getId());
+            if (!mDisplayed.contains(msg.getId())) {
+                long latency = msg.getWaitTime();
+                if (msg.getState() == MsgSnapshot.STATE_DISPLAYED && msg.getRemaining() >= 0) {
+                    latency -= msg.getDuration() - msg.getRemaining(); // Time displayed
+                }
+                mLatencies[mLatencyCount++ % LATENCY_WINDOW] = Math.max(0, latency);
+                mDisplayedCount++;
+            }
+        }
+        mDisplayed = displayed;
+        mDepth = queued;
+        mMaxDepth = Math.max(mMaxDepth, queued);
+        if (++mSamples % SAMPLES_PER_REFRESH == 0) {
+            refreshStats();
+        }
+    }
+
+    private void refreshStats() {
+        final long now = SystemClock.uptimeMillis();
+        final float seconds = Math.max(1, now - mLastRefresh) / 1000f;
+        final float sentRate = (mSent - mLastSent) / seconds;
+        final float displayedRate = (mDisplayedCount - mLastDisplayedCount) / seconds;
+        mLastRefresh = now;
+        mLastSent = mSent;
+        mLastDisplayedCount = mDisplayedCount;
+
+        final int count = Math.min(mLatencyCount, LATENCY_WINDOW);
+        final long[] latencies = new long[count];
+        System.arraycopy(mLatencies, 0, latencies, 0, count);
+        Arrays.sort(latencies);
+
+        final Runtime runtime = Runtime.getRuntime();
+        final long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Sent:       %d (%.1f/s)\n", mSent, sentRate));
+        sb.append(String.format("Displayed:  %d (%.1f/s)\n", mDisplayedCount, displayedRate));
+        sb.append(String.format("Queued:     %d (max %d)\n", mDepth, mMaxDepth));
+        sb.append(String.format("Latency:    p50 %d, p90 %d, p99 %d ms\n",
+                percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99)));
+        if (SDK_INT >= JELLY_BEAN) {
+            sb.append(String.format("Dropped:    %d of %d frames\n", mDroppedFrames, mFrames));
+        }
+        sb.append("Animations: ").append(animationModeName(AppMsg.getAnimationMode()))
+                .append('\n');
+        sb.append(String.format("Heap:       %.1f of %.1f MB",
+                usedHeap / 1048576f, runtime.maxMemory() / 1048576f));
+        mStats.setText(sb);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    private static String animationModeName(int mode) {
+        switch (mode) {
+            case AppMsg.ANIMATIONS_SHORT:
+                return "short";
+            case AppMsg.ANIMATIONS_OFF:
+                return "off";
+            default:
+                return "full";
+        }
+    }
+
+    @TargetApi(JELLY_BEAN)
+    private void startCountingFrames() {
+        if (mFrameCounter == null) {
+            mFrameCounter = new FrameCounterJb();
+        }
+        ((FrameCounterJb) mFrameCounter).start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mRunning) {
+            stop();
+        }
+    }
+
+    /**
+     * Fires messages at a steady rate from a background thread.
+     */
+    private class Producer implements Runnable {
+        private final int mRate;
+        private final int mHighRatio;
+        private final int mLowRatio;
+        private final int mStickyRatio;
+        private final boolean mMixStyles;
+
+        Producer(int rate, int highRatio, int lowRatio, int stickyRatio, boolean mixStyles) {
+            mRate = rate;
+            mHighRatio = highRatio;
+            mLowRatio = lowRatio;
+            mStickyRatio = stickyRatio;
+            mMixStyles = mixStyles;
+        }
+
+        @Override
+        public void run() {
+            final Random random = new Random();
+            final long interval = 1000000000L / mRate;
+            long next = System.nanoTime();
+            while (mRunning) {
+                final int draw = random.nextInt(100);
+                final int priority = draw < mHighRatio ? AppMsg.PRIORITY_HIGH
+                        : draw < mHighRatio + mLowRatio ? AppMsg.PRIORITY_LOW
+                        : AppMsg.PRIORITY_NORMAL;
+                final boolean sticky = random.nextInt(100) < mStickyRatio;
+                final AppMsg.Style style = mMixStyles
+                        ? STYLES[random.nextInt(STYLES.length)] : AppMsg.STYLE_INFO;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        showMsg(style, priority, sticky);
+                    }
+                });
+
+                next += interval;
+                final long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    @TargetApi(JELLY_BEAN)
+    private class FrameCounterJb implements Choreographer.FrameCallback {
+        private boolean mCounting;
+        private long mLastFrameTime;
+
+        void start() {
+            if (!mCounting) { // Still counting if restarted right after stopping
+                mCounting = true;
+                mLastFrameTime = 0;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mLastFrameTime > 0) {
+                // Frames that should have been drawn meanwhile, rounded
+                final long elapsed = (frameTimeNanos - mLastFrameTime + FRAME_INTERVAL / 2)
+                        / FRAME_INTERVAL;
+                mFrames += Math.max(1, elapsed);
+                mDroppedFrames += Math.max(0, elapsed - 1);
+            }
+            mLastFrameTime = frameTimeNanos;
+            if (mRunning) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                mCounting = false;
+            }
+        }
+    }
+}